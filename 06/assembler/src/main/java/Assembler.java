@@ -1,6 +1,8 @@
 
 import java.io.*;
 import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.List;
 
 
 
@@ -8,10 +10,22 @@ public class Assembler {
 
     private BufferedWriter writer;
     private File outputFile;
+    private LineMap lineMap;
+    private Log log;
 
     public Assembler(String filePath) throws IOException {
         this.outputFile = new File(filePath + ".hack");
         this.writer = new BufferedWriter(new FileWriter(outputFile));
+        this.log = new Log(Log.Level.INFO, System.out);
+    }
+
+    /**
+     * Sets the log. Each command and address is traced at TRACE level.
+     *
+     * @param log the log to print messages to.
+     */
+    public void setLog(Log log) {
+        this.log = log;
     }
 
     /**
@@ -39,7 +53,9 @@ public class Assembler {
      */
 
     private String to15bitBin(int input) {
-        System.out.println(input);
+        if (log.isEnabled(Log.Level.TRACE)) {
+            log.trace(String.valueOf(input));
+        }
         String bin = Integer.toBinaryString(input);
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < (15 - bin.length()); i++) {
@@ -54,17 +70,38 @@ public class Assembler {
     /**
      * Validates command line arguments for proper input.
      *
-     * @throws InvalidParameterException when not one argument, and when not a .asm
+     * @return the path to the .asm file.
+     * @throws InvalidParameterException when not one argument besides the --lines, --quiet and --trace options, and when not a .asm
      *                                   file.
      */
 
-    private static void processArgs(String[] args) throws InvalidParameterException {
-        if (args.length != 1) {
+    private static String processArgs(String[] args) throws InvalidParameterException {
+        String path = null;
+        for (String arg : args) {
+            if (arg.equals("--lines") || arg.equals("--quiet") || arg.equals("--trace")) {
+                continue;
+            }
+            if (path != null) {
+                throw new InvalidParameterException("One argument expected");
+            }
+            path = arg;
+        }
+        if (path == null) {
             throw new InvalidParameterException("One argument expected");
         }
-        if (!args[0].matches("^.+\\.asm$")) {
+        if (!path.matches("^.+\\.asm$")) {
             throw new InvalidParameterException("Expected .asm file only");
         }
+        return path;
+    }
+
+    /**
+     * Starts recording which .asm line each line of the .hack file was assembled from.
+     *
+     * @param lineMap the map to record into.
+     */
+    private void setLineMap(LineMap lineMap) {
+        this.lineMap = lineMap;
     }
 
     /**
@@ -104,9 +141,17 @@ public class Assembler {
     private void secondPass(Parser parser, SymbolTable symbolTable) throws Exception {
         // empty RAM slots start at 16.
         int ram = 16;
+        int hackLine = 1;
+        String asmFileName = outputFile.getName().replaceAll("\\.hack$", ".asm");
         while (parser.hasMoreCommands()) {
             parser.advance();
-            System.out.println(parser.currentCommand);
+            if (log.isEnabled(Log.Level.TRACE)) {
+                log.trace(parser.currentCommand);
+            }
+
+            if (lineMap != null && (parser.commandType() == Command.A_COMMAND || parser.commandType() == Command.C_COMMAND)) {
+                lineMap.add(hackLine++, asmFileName, parser.getLineNumber());
+            }
 
             if (parser.commandType() == Command.A_COMMAND) {
                 String bitString;
@@ -156,19 +201,30 @@ public class Assembler {
     /**
      * Main method handles method calls for assembler program and handles IO
      *
-     * @param args A path to a single .asm file only.
+     * @param args A path to a single .asm file only, optionally with --lines to also write a binary
+     *             line map from the .hack file back to the .asm lines.
      */
     public static void main(String[] args) throws Exception {
-        processArgs(args);
-        Assembler assembler = new Assembler(args[0].substring(0, args[0].lastIndexOf('.')));
-        Parser parser = new Parser(args[0]);
+        String path = processArgs(args);
+        Assembler assembler = new Assembler(path.substring(0, path.lastIndexOf('.')));
+        List<String> options = Arrays.asList(args);
+        LineMap lineMap = options.contains("--lines") ? new LineMap() : null;
+        assembler.setLineMap(lineMap);
+        Log log = Log.console(options.contains("--trace") ? Log.Level.TRACE
+                : options.contains("--quiet") ? Log.Level.ERROR : Log.Level.INFO);
+        assembler.setLog(log);
+        Parser parser = new Parser(path);
         SymbolTable symbolTable = new SymbolTable();
         parser.createNewScanner();
         symbolTable = assembler.firstPass(parser, symbolTable);
         parser.resetLineNumber();
         parser.createNewScanner();
         assembler.secondPass(parser, symbolTable);
-        System.out.println("Assembly completed successfully!");
+        if (lineMap != null) {
+            lineMap.write(assembler.outputFile.getPath() + LineMap.EXTENSION);
+        }
+        log.info("Assembly completed successfully!");
+        log.close();
     }
 
 }
\ No newline at end of file
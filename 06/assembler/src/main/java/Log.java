@@ -0,0 +1,169 @@
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Progress and trace messages, filtered by level.
+ * <p>
+ * INFO messages (one or two per file) are printed by default. DEBUG and TRACE messages, which can
+ * be printed for every function, token or command, are off unless asked for. Callers building a
+ * message for one of those levels should check isEnabled first, so that nothing is built when the
+ * level is off.
+ * <p>
+ * A console log at DEBUG or TRACE does not print on the calling thread: messages are collected into
+ * chunks, and a background thread writes the chunks to standard output. close() must be called to
+ * write out what is left.
+ */
+public class Log {
+
+    public enum Level {
+        ERROR, INFO, DEBUG, TRACE
+    }
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int QUEUED_CHUNKS = 64;
+    private static final String END = new String("");
+
+    private final Level level;
+    private final PrintStream out;
+    private final BlockingQueue<String> queue;
+    private final Thread writerThread;
+    private StringBuilder chunk;
+    private IOException writeError;
+
+    /**
+     * Creates a log which prints directly to the given stream.
+     *
+     * @param level the most detailed level to print.
+     * @param out   the stream to print to.
+     */
+    public Log(Level level, PrintStream out) {
+        this.level = level;
+        this.out = out;
+        this.queue = null;
+        this.writerThread = null;
+    }
+
+    private Log(Level level) {
+        this.level = level;
+        this.out = null;
+        this.queue = new ArrayBlockingQueue<String>(QUEUED_CHUNKS);
+        this.chunk = new StringBuilder(CHUNK_SIZE);
+        this.writerThread = new Thread(this::drain, "log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Creates a log which prints to standard output, through a background thread if DEBUG or
+     * TRACE messages are enabled.
+     *
+     * @param level the most detailed level to print.
+     * @return the log.
+     */
+    public static Log console(Level level) {
+        if (level.compareTo(Level.INFO) > 0) {
+            return new Log(level);
+        }
+        return new Log(level, System.out);
+    }
+
+    public boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) <= 0;
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public void trace(String message) {
+        log(Level.TRACE, message);
+    }
+
+    /**
+     * Prints a message on a line of its own, if its level is enabled.
+     *
+     * @param messageLevel the level of the message.
+     * @param message      the message.
+     */
+    public void log(Level messageLevel, String message) {
+        if (isEnabled(messageLevel)) {
+            write(message + System.lineSeparator());
+        }
+    }
+
+    /**
+     * Prints text as it is, whatever the level. Used to pass on text already collected by another log.
+     *
+     * @param text the text to print.
+     */
+    public synchronized void write(String text) {
+        if (queue == null) {
+            out.print(text);
+            return;
+        }
+        chunk.append(text);
+        if (chunk.length() >= CHUNK_SIZE) {
+            hand(chunk.toString());
+            chunk = new StringBuilder(CHUNK_SIZE);
+        }
+    }
+
+    private void hand(String text) {
+        try {
+            queue.put(text);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes chunks to standard output until close() is called, flushing whenever it catches up.
+     */
+    private void drain() {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), CHUNK_SIZE);
+        try {
+            String text;
+            while ((text = queue.take()) != END) {
+                writer.write(text);
+                if (queue.isEmpty()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            writeError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes out any buffered messages. A log with a background thread stops the thread.
+     *
+     * @throws IOException if the messages could not be written.
+     */
+    public synchronized void close() throws IOException {
+        if (queue == null) {
+            out.flush();
+            return;
+        }
+        if (chunk.length() > 0) {
+            hand(chunk.toString());
+            chunk = new StringBuilder();
+        }
+        hand(END);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+}
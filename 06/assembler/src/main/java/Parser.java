@@ -44,6 +44,13 @@ public class Parser {
         this.lineNumber = 0;
     }
 
+    /**
+     * @return the line number of the current command in the .asm file.
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
+
     /**
      * @return whether there are more commands in the input file.
      */
@@ -0,0 +1,79 @@
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.HashMap;
+
+/**
+ * Resolves a ROM address of a .hack program back through every stage of the toolchain that
+ * wrote a line map: .hack to .asm (Assembler), .asm or .hack to .vm (VMTranslator), and .vm to
+ * .jack (JackCompiler).
+ * <p>
+ * Starting from the .hack file, each generated file's map is read from the file's path plus
+ * ".lines". The source file it points to is looked up in the same directory, and the chain
+ * continues for as long as that file has a map of its own.
+ */
+public class SourceLocator {
+
+    private final HashMap<String, LineMap> maps;
+
+    public SourceLocator() {
+        this.maps = new HashMap<String, LineMap>();
+    }
+
+    /**
+     * Loads the line map of a generated file, if it has one. Maps are cached, so resolving many
+     * addresses of the same program only reads each map once.
+     *
+     * @param generatedFile the generated file.
+     * @return the line map, or null if the file has none.
+     */
+    private LineMap mapFor(File generatedFile) throws IOException {
+        String path = generatedFile.getPath() + LineMap.EXTENSION;
+        if (maps.containsKey(path)) {
+            return maps.get(path);
+        }
+        LineMap map = new File(path).isFile() ? LineMap.read(path) : null;
+        maps.put(path, map);
+        return map;
+    }
+
+    /**
+     * Resolves a ROM address and prints each location along the chain.
+     *
+     * @param hackFile the .hack file.
+     * @param address  the ROM address.
+     * @return the resolved location in the original source, as file:line.
+     */
+    public String resolve(File hackFile, int address) throws IOException {
+        File file = hackFile;
+        // A .hack file holds one instruction per line, so ROM address n is on line n + 1.
+        int line = address + 1;
+        StringBuilder chain = new StringBuilder("ROM[" + address + "]");
+        LineMap map;
+        while ((map = mapFor(file)) != null) {
+            int entry = map.find(line);
+            if (entry < 0) {
+                break;
+            }
+            file = new File(file.getParentFile(), map.getSourceFile(entry));
+            line = map.getSourceLine(entry);
+            chain.append(" -> ").append(file.getName()).append(":").append(line);
+        }
+        System.out.println(chain);
+        return file.getName() + ":" + line;
+    }
+
+    /**
+     * @param args the .hack file followed by one or more ROM addresses.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !args[0].endsWith(".hack")) {
+            throw new InvalidParameterException("Expected a .hack file followed by one or more ROM addresses");
+        }
+        File hackFile = new File(args[0]).getAbsoluteFile();
+        SourceLocator locator = new SourceLocator();
+        for (int i = 1; i < args.length; i++) {
+            locator.resolve(hackFile, Integer.parseInt(args[i]));
+        }
+    }
+}
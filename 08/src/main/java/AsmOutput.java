@@ -0,0 +1,58 @@
+import java.io.IOException;
+
+/**
+ * The destination of the instructions generated by the CodeWriter.
+ */
+public interface AsmOutput {
+
+    /**
+     * Writes a comment. Outputs which do not keep comments may ignore it.
+     *
+     * @param text the text of the comment.
+     */
+    void comment(String text);
+
+    /**
+     * Writes a (LABEL) pseudo-command.
+     *
+     * @param symbol the label symbol.
+     */
+    void label(String symbol);
+
+    /**
+     * Writes an A instruction referring to a symbol.
+     *
+     * @param symbol the symbol, resolved to an address by the assembler.
+     */
+    void aInstruction(String symbol);
+
+    /**
+     * Writes an A instruction with a constant value.
+     *
+     * @param value the constant, 0 <= value <= 32767.
+     */
+    void aInstruction(int value);
+
+    /**
+     * Writes a C instruction of the form dest=comp;jump.
+     *
+     * @param instruction the instruction in Hack assembly syntax.
+     */
+    void cInstruction(String instruction);
+
+    /**
+     * @return the ROM address the next instruction will be placed at, which is also the number
+     * of instructions written so far.
+     */
+    int romAddress();
+
+    /**
+     * @return the line of the output file that the next instruction will be written on, starting from 1.
+     */
+    int outputLine();
+
+    /**
+     * Finishes writing and closes the output.
+     */
+    void close() throws IOException;
+}
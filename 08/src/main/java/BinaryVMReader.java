@@ -0,0 +1,102 @@
+import java.io.*;
+
+/**
+ * Reads the compact binary VM format written by the Jack compiler with --binary-vm (.vmb files),
+ * producing the same VMCommands the Parser produces for the equivalent .vm text.
+ * <p>
+ * The format is:
+ * <pre>
+ * int     magic "N2TV"
+ * byte    version
+ * then for each command, an opcode byte followed by its operands:
+ *   0-8   add sub neg eq gt lt and or not
+ *   9     push      segment byte, index short
+ *   10    pop       segment byte, index short
+ *   11    label     name
+ *   12    goto      name
+ *   13    if-goto   name
+ *   14    function  name, number of locals short
+ *   15    call      name, number of arguments short
+ *   16    return
+ * </pre>
+ * Names are written as a short length followed by that many ASCII bytes. Segments are coded as
+ * constant, argument, local, static, this, that, pointer, temp. The n-th command is given line
+ * number n, the line it would be on in the text format.
+ */
+public class BinaryVMReader implements Closeable {
+
+    public static final String EXTENSION = ".vmb";
+
+    private static final int MAGIC = 0x4E325456;
+    private static final int VERSION = 1;
+
+    private static final String[] ARITHMETIC = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
+    private static final String[] SEGMENTS = {"constant", "argument", "local", "static", "this", "that", "pointer", "temp"};
+    private static final Command[] OPCODES = {Command.C_PUSH, Command.C_POP, Command.C_LABEL, Command.C_GOTO,
+            Command.C_IF, Command.C_FUNCTION, Command.C_CALL, Command.C_RETURN};
+
+    private final DataInputStream in;
+    private final String fileName;
+    private int lineNumber;
+
+    /**
+     * @param file the .vmb file.
+     * @throws IOException if the file cannot be read or is not in the binary VM format.
+     */
+    public BinaryVMReader(File file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        this.fileName = file.getName();
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            in.close();
+            throw new IOException(file.getPath() + " is not a binary VM file");
+        }
+    }
+
+    /**
+     * Reads the next command.
+     *
+     * @return the command, or null at the end of the file.
+     * @throws IOException if the file cannot be read or contains an invalid command.
+     */
+    public VMCommand next() throws IOException {
+        int opcode = in.read();
+        if (opcode == -1) {
+            return null;
+        }
+        lineNumber++;
+        if (opcode < ARITHMETIC.length) {
+            return new VMCommand(Command.C_ARITHMETIC, ARITHMETIC[opcode], 0, fileName, lineNumber);
+        }
+        if (opcode - ARITHMETIC.length >= OPCODES.length) {
+            throw new IOException(fileName + ": invalid opcode " + opcode + " in command " + lineNumber);
+        }
+        Command type = OPCODES[opcode - ARITHMETIC.length];
+        switch (type) {
+            case C_PUSH:
+            case C_POP:
+                int segment = in.readUnsignedByte();
+                if (segment >= SEGMENTS.length) {
+                    throw new IOException(fileName + ": invalid segment " + segment + " in command " + lineNumber);
+                }
+                return new VMCommand(type, SEGMENTS[segment], in.readShort(), fileName, lineNumber);
+            case C_FUNCTION:
+            case C_CALL:
+                String name = readName();
+                return new VMCommand(type, name, in.readShort(), fileName, lineNumber);
+            case C_RETURN:
+                return new VMCommand(type, null, 0, fileName, lineNumber);
+            default:
+                return new VMCommand(type, readName(), 0, fileName, lineNumber);
+        }
+    }
+
+    private String readName() throws IOException {
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        return new String(name, "US-ASCII");
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,6 +1,6 @@
 
 
-import java.io.*;
+import java.io.IOException;
 import java.security.InvalidParameterException;
 import java.util.HashMap;
 
@@ -10,12 +10,22 @@ import java.util.HashMap;
  */
 public class CodeWriter {
 
-    private File outFile;
-    private PrintWriter writer;
+    private AsmOutput out;
     private HashMap<String, String> segmentMap;
     private String currentFile;
     private int jmpIdx;
     private int callRtn;
+    private SymbolMap symbolMap;
+    private LineMap lineMap;
+    private String currentFunction;
+    // A comparison held back in case an if-goto follows it, and the not between them, if any.
+    private VMCommand pendingCompare;
+    private VMCommand pendingNot;
+
+    // Entries of local, argument, this and that up to these indexes are addressed by stepping A up
+    // from the base: cheaper than adding the index for a push up to 2, and for a pop up to 6.
+    private static final int MAX_PUSH_STEP_INDEX = 2;
+    private static final int MAX_POP_STEP_INDEX = 6;
 
 
     /**
@@ -25,8 +35,18 @@ public class CodeWriter {
      * @param outPath the path to the output file.
      */
     public CodeWriter(String outPath) throws IOException {
-        this.outFile = new File(outPath + ".asm");
-        this.writer = new PrintWriter(new BufferedWriter(new FileWriter(outFile)));
+        this(new AsmTextOutput(outPath + ".asm"));
+    }
+
+    /**
+     * Gets ready to write into the given output, which may be an .asm file
+     * or the in-memory instruction list of the Hack backend.
+     *
+     * @param out the output to write instructions into.
+     */
+    public CodeWriter(AsmOutput out) {
+        this.out = out;
+        this.currentFunction = SymbolMap.NO_FUNCTION;
         this.segmentMap = new HashMap<String, String>();
         this.jmpIdx = 0;
         this.callRtn = 0;
@@ -40,9 +60,190 @@ public class CodeWriter {
 
     /**
      * Informs the CodeWriter that the translation of a new VM file has started.
+     * Labels generated by the CodeWriter are numbered per file and prefixed with the file's name,
+     * so the code for a file does not depend on any other file and can be cached and relocated.
      */
     public void setFileName(String fileName) {
+        flushPending();
         this.currentFile = fileName;
+        this.currentFunction = SymbolMap.NO_FUNCTION;
+        this.jmpIdx = 0;
+        this.callRtn = 0;
+    }
+
+    /**
+     * Scopes a label generated by the CodeWriter to the current file.
+     *
+     * @param label the label, unique within the current file.
+     * @return the label, unique within the program.
+     */
+    private String fileLabel(String label) {
+        String prefix = currentFile == null ? "bootstrap" : currentFile.replaceAll(".*/", "").replaceAll("\\.vm$", "");
+        return prefix + "$" + label;
+    }
+
+    /**
+     * Scopes a label from a label, goto or if-goto command to the function it appears in,
+     * as functionName$label.
+     *
+     * @param label the label, unique within the current function.
+     * @return the label, unique within the program.
+     */
+    private String functionLabel(String label) {
+        if (currentFunction.equals(SymbolMap.NO_FUNCTION)) {
+            return label;
+        }
+        return currentFunction + "$" + label;
+    }
+
+    /**
+     * Starts recording which VM command each generated ROM address belongs to.
+     *
+     * @param symbolMap the map to record into.
+     */
+    public void setSymbolMap(SymbolMap symbolMap) {
+        this.symbolMap = symbolMap;
+    }
+
+    /**
+     * Starts recording which .vm line each line of the output file was translated from.
+     *
+     * @param lineMap the map to record into.
+     */
+    public void setLineMap(LineMap lineMap) {
+        this.lineMap = lineMap;
+    }
+
+    /**
+     * Writes the assembly code that is the translation of the given parsed command.
+     * <p>
+     * An eq, lt or gt is held back until the next command: if it is an if-goto, optionally after a
+     * not, the three are translated together as one compare and jump.
+     *
+     * @param command the command to translate. File markers switch the current file.
+     * @throws InvalidParameterException if the command is not valid.
+     */
+    public void write(VMCommand command) {
+        if (command.isFileMarker()) {
+            setFileName(command.getFileName());
+            return;
+        }
+        if (pendingCompare != null) {
+            if (pendingNot == null && isArithmetic(command, "not")) {
+                pendingNot = command;
+                return;
+            }
+            if (command.getType() == Command.C_IF) {
+                writeCompareAndBranch(command);
+                return;
+            }
+            flushPending();
+        }
+        if (isArithmetic(command, "eq") || isArithmetic(command, "lt") || isArithmetic(command, "gt")) {
+            pendingCompare = command;
+            return;
+        }
+        translate(command);
+    }
+
+    private static boolean isArithmetic(VMCommand command, String name) {
+        return command.getType() == Command.C_ARITHMETIC && command.getArg1().equals(name);
+    }
+
+    /**
+     * Translates any comparison being held back as it is.
+     */
+    private void flushPending() {
+        if (pendingCompare == null) {
+            return;
+        }
+        VMCommand compare = pendingCompare;
+        VMCommand not = pendingNot;
+        pendingCompare = null;
+        pendingNot = null;
+        translate(compare);
+        if (not != null) {
+            translate(not);
+        }
+    }
+
+    /**
+     * Records where the code for a command starts, in the symbol and line maps.
+     */
+    private void record(VMCommand command) {
+        if (symbolMap != null) {
+            symbolMap.add(out.romAddress(), currentFunction, command.getFileName(), command.getLineNumber(), command.getType());
+        }
+        if (lineMap != null) {
+            lineMap.add(out.outputLine(), command.getFileName(), command.getLineNumber());
+        }
+    }
+
+    private void translate(VMCommand command) {
+        if (command.getType() == Command.C_FUNCTION) {
+            currentFunction = command.getArg1();
+        }
+        record(command);
+        switch (command.getType()) {
+            case C_ARITHMETIC:
+                writeArithmetic(command.getArg1());
+                break;
+            case C_PUSH:
+            case C_POP:
+                writePushPop(command.getType(), command.getArg1(), command.getArg2());
+                break;
+            case C_LABEL:
+                writeLabel(command.getArg1());
+                break;
+            case C_GOTO:
+                writeGoto(command.getArg1());
+                break;
+            case C_IF:
+                writeIfGoto(command.getArg1());
+                break;
+            case C_FUNCTION:
+                writeFunction(command.getArg1(), command.getArg2());
+                break;
+            case C_CALL:
+                writeCall(command.getArg1(), command.getArg2());
+                break;
+            case C_RETURN:
+                writeReturn();
+                break;
+            default:
+                throw new InvalidParameterException("Command " + command.getType() + " not valid");
+        }
+    }
+
+    /**
+     * Writes a comparison, optionally negated, and the if-goto which follows it as a single
+     * compare and jump. The comparison's true or false is never pushed: the difference of the two
+     * values is tested with the jump that matches the comparison.
+     *
+     * @param branch the if-goto command.
+     */
+    private void writeCompareAndBranch(VMCommand branch) {
+        String compare = pendingCompare.getArg1();
+        boolean negated = pendingNot != null;
+        record(pendingCompare);
+        pendingCompare = null;
+        pendingNot = null;
+        out.comment(compare + (negated ? " not" : "") + " if-goto " + branch.getArg1());
+        out.aInstruction("SP");
+        out.cInstruction("AM=M-1");
+        out.cInstruction("D=M");
+        out.aInstruction("SP");
+        out.cInstruction("AM=M-1");
+        out.cInstruction("D=M-D");
+        record(branch);
+        out.aInstruction(functionLabel(branch.getArg1()));
+        if (compare.equals("eq")) {
+            out.cInstruction(negated ? "D;JNE" : "D;JEQ");
+        } else if (compare.equals("lt")) {
+            out.cInstruction(negated ? "D;JGE" : "D;JLT");
+        } else {
+            out.cInstruction(negated ? "D;JLE" : "D;JGT");
+        }
     }
 
     /**
@@ -50,11 +251,14 @@ public class CodeWriter {
      * Sets stack pointer to 256, and calls Sys.init
      */
     public void writeInit() {
-        writer.println("// Initialisation...");
-        writer.println("@256");
-        writer.println("D=A");
-        writer.println("@SP");
-        writer.println("M=D");
+        if (symbolMap != null) {
+            symbolMap.add(out.romAddress(), SymbolMap.NO_FUNCTION, "(bootstrap)", 0, Command.C_CALL);
+        }
+        out.comment("Initialisation...");
+        out.aInstruction(256);
+        out.cInstruction("D=A");
+        out.aInstruction("SP");
+        out.cInstruction("M=D");
 
         writeCall("Sys.init", 0);
     }
@@ -76,112 +280,112 @@ public class CodeWriter {
      * @param command the given arithmetic command.
      */
     public void writeArithmetic(String command) {
-        writer.println("// " + command);
+        out.comment(command);
         if (command.contains("add")) {
-            writer.println("@SP");
-            writer.println("AM=M-1");
-            writer.println("D=M");
-            writer.println("A=A-1");
-            writer.println("M=D+M");
+            out.aInstruction("SP");
+            out.cInstruction("AM=M-1");
+            out.cInstruction("D=M");
+            out.cInstruction("A=A-1");
+            out.cInstruction("M=D+M");
         } else if (command.contains("sub")) {
-            writer.println("@SP");
-            writer.println("AM=M-1");
-            writer.println("D=M");
-            writer.println("A=A-1");
-            writer.println("M=M-D");
+            out.aInstruction("SP");
+            out.cInstruction("AM=M-1");
+            out.cInstruction("D=M");
+            out.cInstruction("A=A-1");
+            out.cInstruction("M=M-D");
         } else if (command.contains("neg")) {
-            writer.println("@SP");
-            writer.println("A=M-1");
-            writer.println("M=-M");
+            out.aInstruction("SP");
+            out.cInstruction("A=M-1");
+            out.cInstruction("M=-M");
         } else if (command.contains("eq") || command.contains("lt") || command.contains("gt")) {
-            writer.println("@SP");
-            writer.println("AM=M-1");
-            writer.println("D=M");
-            writer.println("A=A-1");
-            writer.println("D=M-D");
+            out.aInstruction("SP");
+            out.cInstruction("AM=M-1");
+            out.cInstruction("D=M");
+            out.cInstruction("A=A-1");
+            out.cInstruction("D=M-D");
             if (command.contains("eq")) {
-                writer.println("@EQUAL_" + jmpIdx);
-                writer.println("D;JEQ");
-                writer.println("@SP");
-                writer.println("A=M-1");
-                writer.println("M=0");
-                writer.println("@PUSH_EQUAL" + jmpIdx);
-                writer.println("0;JMP");
-                writer.println("(EQUAL_" + jmpIdx + ")");
-                writer.println("@SP");
-                writer.println("A=M-1");
-                writer.println("M=-1");
-                writer.println("@PUSH_EQUAL" + jmpIdx);
-                writer.println("0;JMP");
-                writer.println("(PUSH_EQUAL" + jmpIdx + ")");
+                out.aInstruction(fileLabel("EQUAL_" + jmpIdx));
+                out.cInstruction("D;JEQ");
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=0");
+                out.aInstruction(fileLabel("PUSH_EQUAL" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("EQUAL_" + jmpIdx));
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=-1");
+                out.aInstruction(fileLabel("PUSH_EQUAL" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("PUSH_EQUAL" + jmpIdx));
             } else if (command.contains("lt")) {
-                writer.println("@LESS_THAN_" + jmpIdx);
-                writer.println("D;JLT");
-                writer.println("@SP");
-                writer.println("A=M-1");
-                writer.println("M=0");
-                writer.println("@PUSH_LESS" + jmpIdx);
-                writer.println("0;JMP");
-                writer.println("(LESS_THAN_" + jmpIdx + ")");
-                writer.println("@SP");
-                writer.println("A=M-1");
-                writer.println("M=-1");
-                writer.println("@PUSH_LESS" + jmpIdx);
-                writer.println("0;JMP");
-                writer.println("(PUSH_LESS" + jmpIdx + ")");
+                out.aInstruction(fileLabel("LESS_THAN_" + jmpIdx));
+                out.cInstruction("D;JLT");
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=0");
+                out.aInstruction(fileLabel("PUSH_LESS" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("LESS_THAN_" + jmpIdx));
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=-1");
+                out.aInstruction(fileLabel("PUSH_LESS" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("PUSH_LESS" + jmpIdx));
             } else {
-                writer.println("@GREATER_THAN_" + jmpIdx);
-                writer.println("D;JGT");
-                writer.println("@SP");
-                writer.println("A=M-1");
-                writer.println("M=0");
-                writer.println("@PUSH_GREATER" + jmpIdx);
-                writer.println("0;JMP");
-                writer.println("(GREATER_THAN_" + jmpIdx + ")");
-                writer.println("@SP");
-                writer.println("A=M-1");
-                writer.println("M=-1");
-                writer.println("@PUSH_GREATER" + jmpIdx);
-                writer.println("0;JMP");
-                writer.println("(PUSH_GREATER" + jmpIdx + ")");
+                out.aInstruction(fileLabel("GREATER_THAN_" + jmpIdx));
+                out.cInstruction("D;JGT");
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=0");
+                out.aInstruction(fileLabel("PUSH_GREATER" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("GREATER_THAN_" + jmpIdx));
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=-1");
+                out.aInstruction(fileLabel("PUSH_GREATER" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("PUSH_GREATER" + jmpIdx));
             }
             jmpIdx++;
         } else if (command.contains("or") || command.contains("and")) {
-            writer.println("@SP");
-            writer.println("AM=M-1");
-            writer.println("D=M");
-            writer.println("A=A-1");
+            out.aInstruction("SP");
+            out.cInstruction("AM=M-1");
+            out.cInstruction("D=M");
+            out.cInstruction("A=A-1");
             if (command.contains("or")) {
-                writer.println("M=D|M");
+                out.cInstruction("M=D|M");
             } else {
-                writer.println("M=D&M");
+                out.cInstruction("M=D&M");
             }
         } else if (command.contains("not")) {
-            writer.println("@SP");
-            writer.println("A=M-1");
-            writer.println("M=!M");
+            out.aInstruction("SP");
+            out.cInstruction("A=M-1");
+            out.cInstruction("M=!M");
         } else {
             throw new InvalidParameterException("Command " + command + " not valid");
         }
     }
 
     private void pushToStack() {
-        writer.println("@SP");
-        writer.println("A=M");
-        writer.println("M=D");
-        writer.println("@SP");
-        writer.println("M=M+1");
+        out.aInstruction("SP");
+        out.cInstruction("A=M");
+        out.cInstruction("M=D");
+        out.aInstruction("SP");
+        out.cInstruction("M=M+1");
     }
 
     private void popFromStack() {
-        writer.println("@R13");
-        writer.println("M=D");
-        writer.println("@SP");
-        writer.println("AM=M-1");
-        writer.println("D=M");
-        writer.println("@R13");
-        writer.println("A=M");
-        writer.println("M=D");
+        out.aInstruction("R13");
+        out.cInstruction("M=D");
+        out.aInstruction("SP");
+        out.cInstruction("AM=M-1");
+        out.cInstruction("D=M");
+        out.aInstruction("R13");
+        out.cInstruction("A=M");
+        out.cInstruction("M=D");
     }
 
     /**
@@ -189,12 +393,17 @@ public class CodeWriter {
      * translation of the given command, where
      * command is one of the two enumerated
      * values: C_PUSH or C_POP.
+     * <p>
+     * Entries of local, argument, this and that at small indexes are addressed by stepping A up
+     * from the segment's base, and pop stores straight into them, rather than working out the
+     * address with the index and keeping it in R13. The temp, pointer and static segments are at
+     * fixed addresses, which are used directly.
      *
      * @param command the command type, either C_PUSH or C_POP.
      * @param segment the memory segment to push to or pop from.
      * @param index   the location within the segment.
      * @throws IndexOutOfBoundsException if addressing pointer segment and index not in {0,1},
-     *                                   or if addressing temp segment and index > 8
+     *                                   or if addressing temp segment and index not in 0-7
      * @throws InvalidParameterException if segment name invalid, or command invalid.
      */
     public void writePushPop(Command command, String segment, int index) {
@@ -205,89 +414,109 @@ public class CodeWriter {
 
 
         if (command == Command.C_PUSH) {
-            writer.println("// push " + segment + " " + index);
+            out.comment("push " + segment + " " + index);
             if (localArgThisThat) {
-                writer.println("@" + segmentMap.get(segment));
-                writer.println("D=M");
-                writer.println("@" + index);
-                writer.println("A=D+A");
-                writer.println("D=M");
-                pushToStack();
-            } else if (segment.equals("constant")) {
-                writer.println("@" + index);
-                writer.println("D=A");
-                pushToStack();
-            } else if (segment.equals("static")) {
-                String fileName = currentFile.replaceAll(".*/", "");
-                writer.println("@" + fileName + "." + index);
-                writer.println("D=M");
-                pushToStack();
-            } else if (segment.equals("pointer")) {
-                if (index == 0) {
-                    writer.println("@THIS");
-                } else if (index == 1) {
-                    writer.println("@THAT");
+                if (index <= MAX_PUSH_STEP_INDEX) {
+                    segmentEntry(segmentMap.get(segment), index);
                 } else {
-                    throw new InvalidParameterException("Pointer index can be 0 or 1 only.");
+                    out.aInstruction(segmentMap.get(segment));
+                    out.cInstruction("D=M");
+                    out.aInstruction(index);
+                    out.cInstruction("A=D+A");
                 }
-                writer.println("D=M");
+                out.cInstruction("D=M");
                 pushToStack();
-            } else if (segment.equals("temp")) {
-                writer.println("@R5");
-                writer.println("D=A");
-                writer.println("@" + index);
-                writer.println("D=D+A");
-                writer.println("D=M");
+            } else if (segment.equals("constant")) {
+                out.aInstruction(index);
+                out.cInstruction("D=A");
                 pushToStack();
-
             } else {
-                throw new InvalidParameterException("Invalid segment name");
+                fixedAddress(segment, index);
+                out.cInstruction("D=M");
+                pushToStack();
             }
         } else if (command == Command.C_POP) {
-            writer.println("// pop " + segment + " " + index);
-            if (localArgThisThat) {
-                writer.println("@" + segmentMap.get(segment));
-                writer.println("D=M");
-                writer.println("@" + index);
-                writer.println("D=D+A");
-                popFromStack();
-            } else if (segment.equals("temp")) {
-                writer.println("@" + segmentMap.get(segment));
-                writer.println("D=A");
-                writer.println("@" + index);
-                writer.println("D=D+A");
-                popFromStack();
-            } else if (segment.equals("static")) {
-                String fileName = currentFile.replaceAll(".*/", "");
-                writer.println("@" + fileName + "." + index);
-                writer.println("D=A");
-                popFromStack();
-            } else if (segment.equals("pointer")) {
-                if (index == 1) {
-                    writer.println("@THAT");
-                } else if (index == 0) {
-                    writer.println("@THIS");
-                } else {
-                    throw new IndexOutOfBoundsException("Pointer segment can only access index in {0, 1}");
-                }
-                writer.println("D=A");
+            out.comment("pop " + segment + " " + index);
+            if (localArgThisThat && index > MAX_POP_STEP_INDEX) {
+                out.aInstruction(segmentMap.get(segment));
+                out.cInstruction("D=M");
+                out.aInstruction(index);
+                out.cInstruction("D=D+A");
                 popFromStack();
+            } else if (localArgThisThat) {
+                out.aInstruction("SP");
+                out.cInstruction("AM=M-1");
+                out.cInstruction("D=M");
+                segmentEntry(segmentMap.get(segment), index);
+                out.cInstruction("M=D");
             } else {
-                throw new InvalidParameterException("Invalid segment name");
+                out.aInstruction("SP");
+                out.cInstruction("AM=M-1");
+                out.cInstruction("D=M");
+                fixedAddress(segment, index);
+                out.cInstruction("M=D");
             }
         } else {
             throw new InvalidParameterException("Command must be C_PUSH or C_POP only.");
         }
     }
 
+    /**
+     * Points A at an entry of a local, argument, this or that segment by stepping up from its base.
+     *
+     * @param base  the symbol holding the segment's base address.
+     * @param index the index of the entry.
+     */
+    private void segmentEntry(String base, int index) {
+        out.aInstruction(base);
+        if (index == 0) {
+            out.cInstruction("A=M");
+            return;
+        }
+        out.cInstruction("A=M+1");
+        for (int i = 1; i < index; i++) {
+            out.cInstruction("A=A+1");
+        }
+    }
+
+    /**
+     * Points A at an entry of the temp, pointer or static segment.
+     *
+     * @param segment the segment.
+     * @param index   the index of the entry.
+     * @throws IndexOutOfBoundsException if the index is outside the pointer or temp segment.
+     * @throws InvalidParameterException if the segment is not temp, pointer or static.
+     */
+    private void fixedAddress(String segment, int index) {
+        if (segment.equals("temp")) {
+            if (index < 0 || index > 7) {
+                throw new IndexOutOfBoundsException("Temp segment can only access index in 0-7");
+            }
+            out.aInstruction(5 + index);
+        } else if (segment.equals("pointer")) {
+            if (index == 0) {
+                out.aInstruction("THIS");
+            } else if (index == 1) {
+                out.aInstruction("THAT");
+            } else {
+                throw new IndexOutOfBoundsException("Pointer segment can only access index in {0, 1}");
+            }
+        } else if (segment.equals("static")) {
+            String fileName = currentFile.replaceAll(".*/", "");
+            out.aInstruction(fileName + "." + index);
+        } else {
+            throw new InvalidParameterException("Invalid segment name");
+        }
+    }
+
     /**
      * Writes the assembly code that is the translation of the label command.
      *
      * @param label the label to write.
      */
     public void writeLabel(String label) {
-        writer.println("// label " + label);
-        writer.println("(" + label + ")");
+        out.comment("label " + label);
+        out.label(functionLabel(label));
     }
 
 
@@ -298,9 +527,9 @@ public class CodeWriter {
      * @param label the label to jump to.
      */
     public void writeGoto(String label) {
-        writer.println("// goto " + label);
-        writer.println("@" + label);
-        writer.println("0;JMP");
+        out.comment("goto " + label);
+        out.aInstruction(functionLabel(label));
+        out.cInstruction("0;JMP");
     }
 
     /**
@@ -310,12 +539,12 @@ public class CodeWriter {
      * @param label the label to jump to.
      */
     public void writeIfGoto(String label) {
-        writer.println("// if-goto" + label);
-        writer.println("@SP");
-        writer.println("AM=M-1");
-        writer.println("D=M");
-        writer.println("@" + label);
-        writer.println("D;JNE");
+        out.comment("if-goto" + label);
+        out.aInstruction("SP");
+        out.cInstruction("AM=M-1");
+        out.cInstruction("D=M");
+        out.aInstruction(functionLabel(label));
+        out.cInstruction("D;JNE");
 
     }
 
@@ -329,37 +558,37 @@ public class CodeWriter {
      * @param nArgs        the number of arguments the function takes.
      */
     public void writeCall(String functionName, int nArgs) {
-        writer.println("// call " + functionName + " " + nArgs);
-        writer.println("@returnaddr" + functionName + callRtn);
-        writer.println("D=A");
+        out.comment("call " + functionName + " " + nArgs);
+        out.aInstruction(fileLabel("returnaddr" + functionName + callRtn));
+        out.cInstruction("D=A");
         pushToStack();
-        writer.println("@LCL");
-        writer.println("D=M");
+        out.aInstruction("LCL");
+        out.cInstruction("D=M");
         pushToStack();
-        writer.println("@ARG");
-        writer.println("D=M");
+        out.aInstruction("ARG");
+        out.cInstruction("D=M");
         pushToStack();
-        writer.println("@THIS");
-        writer.println("D=M");
+        out.aInstruction("THIS");
+        out.cInstruction("D=M");
         pushToStack();
-        writer.println("@THAT");
-        writer.println("D=M");
+        out.aInstruction("THAT");
+        out.cInstruction("D=M");
         pushToStack();
-        writer.println("@5");
-        writer.println("D=A");
-        writer.println("@" + nArgs);
-        writer.println("D=D+A");
-        writer.println("@SP");
-        writer.println("D=M-D");
-        writer.println("@ARG");
-        writer.println("M=D");
-        writer.println("@SP");
-        writer.println("D=M");
-        writer.println("@LCL");
-        writer.println("M=D");
-        writer.println("@" + functionName);
-        writer.println("0;JMP");
-        writer.println("(returnaddr" + functionName + callRtn + ")");
+        out.aInstruction(5);
+        out.cInstruction("D=A");
+        out.aInstruction(nArgs);
+        out.cInstruction("D=D+A");
+        out.aInstruction("SP");
+        out.cInstruction("D=M-D");
+        out.aInstruction("ARG");
+        out.cInstruction("M=D");
+        out.aInstruction("SP");
+        out.cInstruction("D=M");
+        out.aInstruction("LCL");
+        out.cInstruction("M=D");
+        out.aInstruction(functionName);
+        out.cInstruction("0;JMP");
+        out.label(fileLabel("returnaddr" + functionName + callRtn));
         callRtn++;
     }
 
@@ -372,11 +601,12 @@ public class CodeWriter {
      * @param numLocals    the number of local variables.
      */
     public void writeFunction(String functionName, int numLocals) {
-        writer.println("// function " + currentFile + "." + functionName + " " + numLocals);
-        writer.println("(" + functionName + ")");
+        currentFunction = functionName;
+        out.comment("function " + currentFile + "." + functionName + " " + numLocals);
+        out.label(functionName);
         for (int i = 0; i < numLocals; i++) {
-            writer.println("@0");
-            writer.println("D=A");
+            out.aInstruction(0);
+            out.cInstruction("D=A");
             pushToStack();
         }
     }
@@ -388,83 +618,83 @@ public class CodeWriter {
      * then goes to return address in caller's code.
      */
     public void writeReturn() {
-        writer.println("// return ");
+        out.comment("return ");
         // frame = LCL
-        writer.println("@LCL");
-        writer.println("D=M");
-        writer.println("@frame");
-        writer.println("M=D");
+        out.aInstruction("LCL");
+        out.cInstruction("D=M");
+        out.aInstruction("frame");
+        out.cInstruction("M=D");
 
         // ret = *(frame-5)
-        writer.println("@5");
-        writer.println("D=A");
-        writer.println("@frame");
-        writer.println("A=M-D");
-        writer.println("D=M");
-        writer.println("@ret");
-        writer.println("M=D");
+        out.aInstruction(5);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("ret");
+        out.cInstruction("M=D");
 
         // *ARG = pop()
-        writer.println("@SP");
-        writer.println("A=M-1");
-        writer.println("D=M");
-        writer.println("@ARG");
-        writer.println("A=M");
-        writer.println("M=D");
+        out.aInstruction("SP");
+        out.cInstruction("A=M-1");
+        out.cInstruction("D=M");
+        out.aInstruction("ARG");
+        out.cInstruction("A=M");
+        out.cInstruction("M=D");
 
         // SP = ARG + 1
-        writer.println("@ARG");
-        writer.println("D=M+1");
-        writer.println("@SP");
-        writer.println("M=D");
+        out.aInstruction("ARG");
+        out.cInstruction("D=M+1");
+        out.aInstruction("SP");
+        out.cInstruction("M=D");
 
         // THAT = *(frame-1)
-        writer.println("@1");
-        writer.println("D=A");
-        writer.println("@frame");
-        writer.println("A=M-D");
-        writer.println("D=M");
-        writer.println("@THAT");
-        writer.println("M=D");
+        out.aInstruction(1);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("THAT");
+        out.cInstruction("M=D");
 
         // THIS = *(frame-2)
-        writer.println("@2");
-        writer.println("D=A");
-        writer.println("@frame");
-        writer.println("A=M-D");
-        writer.println("D=M");
-        writer.println("@THIS");
-        writer.println("M=D");
+        out.aInstruction(2);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("THIS");
+        out.cInstruction("M=D");
 
         // ARG = *(frame-3)
-        writer.println("@3");
-        writer.println("D=A");
-        writer.println("@frame");
-        writer.println("A=M-D");
-        writer.println("D=M");
-        writer.println("@ARG");
-        writer.println("M=D");
+        out.aInstruction(3);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("ARG");
+        out.cInstruction("M=D");
 
         // LCL = *(frame-4)
-        writer.println("@4");
-        writer.println("D=A");
-        writer.println("@frame");
-        writer.println("A=M-D");
-        writer.println("D=M");
-        writer.println("@LCL");
-        writer.println("M=D");
+        out.aInstruction(4);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("LCL");
+        out.cInstruction("M=D");
 
         // goto ret
-        writer.println("@ret");
-        writer.println("A=M");
-        writer.println("0;JMP");
+        out.aInstruction("ret");
+        out.cInstruction("A=M");
+        out.cInstruction("0;JMP");
     }
 
     /**
      * Closes the output file.
      */
-    public void close() {
-        writer.flush();
-        writer.close();
+    public void close() throws IOException {
+        flushPending();
+        out.close();
     }
 }
@@ -0,0 +1,98 @@
+import java.security.InvalidParameterException;
+import java.util.HashMap;
+
+/**
+ * Translates Hack C instructions into their binary encoding.
+ * The CodeWriter only ever produces a small, fixed set of C instructions, so each
+ * distinct instruction is encoded once and looked up afterwards.
+ */
+public class HackCode {
+
+    private static final HashMap<String, Integer> COMP = new HashMap<String, Integer>();
+    private static final HashMap<String, Integer> JUMP = new HashMap<String, Integer>();
+    private static final HashMap<String, Integer> ENCODED = new HashMap<String, Integer>();
+
+    static {
+        // a c1 c2 c3 c4 c5 c6
+        COMP.put("0", 0b0101010);
+        COMP.put("1", 0b0111111);
+        COMP.put("-1", 0b0111010);
+        COMP.put("D", 0b0001100);
+        COMP.put("A", 0b0110000);
+        COMP.put("!D", 0b0001101);
+        COMP.put("!A", 0b0110001);
+        COMP.put("-D", 0b0001111);
+        COMP.put("-A", 0b0110011);
+        COMP.put("D+1", 0b0011111);
+        COMP.put("A+1", 0b0110111);
+        COMP.put("D-1", 0b0001110);
+        COMP.put("A-1", 0b0110010);
+        COMP.put("D+A", 0b0000010);
+        COMP.put("D-A", 0b0010011);
+        COMP.put("A-D", 0b0000111);
+        COMP.put("D&A", 0b0000000);
+        COMP.put("D|A", 0b0010101);
+        COMP.put("M", 0b1110000);
+        COMP.put("!M", 0b1110001);
+        COMP.put("-M", 0b1110011);
+        COMP.put("M+1", 0b1110111);
+        COMP.put("M-1", 0b1110010);
+        COMP.put("D+M", 0b1000010);
+        COMP.put("D-M", 0b1010011);
+        COMP.put("M-D", 0b1000111);
+        COMP.put("D&M", 0b1000000);
+        COMP.put("D|M", 0b1010101);
+
+        JUMP.put("JGT", 0b001);
+        JUMP.put("JEQ", 0b010);
+        JUMP.put("JGE", 0b011);
+        JUMP.put("JLT", 0b100);
+        JUMP.put("JNE", 0b101);
+        JUMP.put("JLE", 0b110);
+        JUMP.put("JMP", 0b111);
+    }
+
+    private HackCode() {
+    }
+
+    /**
+     * Encodes a C instruction of the form dest=comp;jump, where dest and jump are optional.
+     *
+     * @param instruction the instruction in Hack assembly syntax.
+     * @return the 16 bit binary encoding of the instruction.
+     * @throws InvalidParameterException if the instruction is not a valid C instruction.
+     */
+    public static synchronized int encode(String instruction) {
+        Integer cached = ENCODED.get(instruction);
+        if (cached != null) {
+            return cached;
+        }
+        String comp = instruction;
+        int dest = 0;
+        int jump = 0;
+        int eq = comp.indexOf('=');
+        if (eq >= 0) {
+            String destMnemonic = comp.substring(0, eq);
+            dest = (destMnemonic.contains("A") ? 4 : 0)
+                    | (destMnemonic.contains("D") ? 2 : 0)
+                    | (destMnemonic.contains("M") ? 1 : 0);
+            comp = comp.substring(eq + 1);
+        }
+        int semi = comp.indexOf(';');
+        if (semi >= 0) {
+            Integer jumpBits = JUMP.get(comp.substring(semi + 1));
+            if (jumpBits == null) {
+                throw new InvalidParameterException("Invalid jump in " + instruction);
+            }
+            jump = jumpBits;
+            comp = comp.substring(0, semi);
+        }
+        Integer compBits = COMP.get(comp);
+        if (compBits == null) {
+            throw new InvalidParameterException("Invalid comp in " + instruction);
+        }
+        int encoded = 0b1110000000000000 | (compBits << 6) | (dest << 3) | jump;
+        ENCODED.put(instruction, encoded);
+        return encoded;
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs a translated .hack program on a headless Hack CPU and reports, for each VM function,
+ * how many instructions were executed inside it and how many times it was called.
+ * <p>
+ * The program must have been translated with --map, so that ROM addresses can be related back
+ * to VM functions. Execution stops when the program enters the usual (END) @END 0;JMP halting
+ * loop, runs off the end of the ROM, or reaches the cycle limit.
+ */
+public class HackProfiler {
+
+    private static final int RAM_SIZE = 32768;
+    private static final long DEFAULT_CYCLES = 100_000_000L;
+
+    private final short[] rom;
+    private final SymbolMap symbolMap;
+    private final long[] executed;
+    private final long[] calls;
+    private long cycles;
+
+    /**
+     * @param rom       the program, one instruction per address.
+     * @param symbolMap the map written by VMTranslator for the program.
+     */
+    public HackProfiler(short[] rom, SymbolMap symbolMap) {
+        this.rom = rom;
+        this.symbolMap = symbolMap;
+        this.executed = new long[rom.length];
+        this.calls = new long[rom.length];
+    }
+
+    /**
+     * Reads a .hack file.
+     *
+     * @param path the path to the .hack file.
+     * @return the program, one instruction per address.
+     * @throws IOException if the file cannot be read or contains an invalid instruction.
+     */
+    public static short[] readProgram(String path) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        short[] program = new short[lines.size()];
+        for (int i = 0; i < program.length; i++) {
+            if (!lines.get(i).matches("[01]{16}")) {
+                throw new IOException("Invalid instruction at address " + i + " of " + path);
+            }
+            program[i] = (short) Integer.parseInt(lines.get(i), 2);
+        }
+        return program;
+    }
+
+    /**
+     * Executes the program from address 0.
+     *
+     * @param maxCycles the maximum number of instructions to execute.
+     */
+    public void run(long maxCycles) {
+        short[] ram = new short[RAM_SIZE];
+        int a = 0;
+        int d = 0;
+        int pc = 0;
+        cycles = 0;
+        while (pc < rom.length && cycles < maxCycles) {
+            int instruction = rom[pc] & 0xFFFF;
+            executed[pc]++;
+            cycles++;
+            if ((instruction & 0x8000) == 0) {
+                a = instruction;
+                pc++;
+                continue;
+            }
+            int y = (instruction & 0x1000) != 0 ? ram[a & 0x7FFF] : (short) a;
+            int out = (short) alu(instruction >> 6, (short) d, (short) y);
+            if ((instruction & 0x08) != 0) {
+                ram[a & 0x7FFF] = (short) out;
+            }
+            int target = a & 0x7FFF;
+            if ((instruction & 0x20) != 0) {
+                a = out & 0xFFFF;
+            }
+            if ((instruction & 0x10) != 0) {
+                d = out;
+            }
+            if (jumps(instruction, out)) {
+                if (target == pc - 1 && (rom[pc - 1] & 0xFFFF) == pc - 1) {
+                    // @LOOP followed by 0;JMP back to itself - the program has halted.
+                    return;
+                }
+                recordJump(pc, target);
+                pc = target;
+            } else {
+                pc++;
+            }
+        }
+    }
+
+    /**
+     * Computes the Hack ALU function selected by the six control bits zx nx zy ny f no.
+     */
+    private static int alu(int control, short x, short y) {
+        int xv = x;
+        int yv = y;
+        if ((control & 0x20) != 0) xv = 0;
+        if ((control & 0x10) != 0) xv = ~xv;
+        if ((control & 0x08) != 0) yv = 0;
+        if ((control & 0x04) != 0) yv = ~yv;
+        int out = (control & 0x02) != 0 ? xv + yv : xv & yv;
+        if ((control & 0x01) != 0) out = ~out;
+        return out;
+    }
+
+    private static boolean jumps(int instruction, int out) {
+        short value = (short) out;
+        return ((instruction & 0x04) != 0 && value < 0)
+                || ((instruction & 0x02) != 0 && value == 0)
+                || ((instruction & 0x01) != 0 && value > 0);
+    }
+
+    /**
+     * A jump out of the code of a call command is the jump into the called function.
+     */
+    private void recordJump(int from, int to) {
+        int entry = symbolMap.find(from);
+        if (entry >= 0 && symbolMap.getType(entry) == Command.C_CALL && to < calls.length) {
+            calls[to]++;
+        }
+    }
+
+    /**
+     * Prints the number of instructions executed in, and calls made to, each function,
+     * most expensive first.
+     */
+    public void report() {
+        HashMap<String, long[]> totals = new HashMap<String, long[]>();
+        for (int entry = 0; entry < symbolMap.size(); entry++) {
+            int start = symbolMap.getAddress(entry);
+            int end = entry + 1 < symbolMap.size() ? symbolMap.getAddress(entry + 1) : rom.length;
+            long[] total = totals.get(symbolMap.getFunction(entry));
+            if (total == null) {
+                total = new long[2];
+                totals.put(symbolMap.getFunction(entry), total);
+            }
+            for (int address = start; address < end && address < rom.length; address++) {
+                total[0] += executed[address];
+            }
+            if (symbolMap.getType(entry) == Command.C_FUNCTION && start < rom.length) {
+                total[1] += calls[start];
+            }
+        }
+        String[] names = totals.keySet().toArray(new String[0]);
+        Arrays.sort(names, (first, second) -> Long.compare(totals.get(second)[0], totals.get(first)[0]));
+
+        System.out.println("Executed " + cycles + " instructions");
+        System.out.println(String.format("%-40s %14s %7s %12s", "function", "instructions", "%", "calls"));
+        for (String name : names) {
+            long[] total = totals.get(name);
+            if (total[0] == 0) {
+                continue;
+            }
+            double percent = cycles == 0 ? 0 : 100.0 * total[0] / cycles;
+            System.out.println(String.format("%-40s %14d %6.2f%% %12d", name, total[0], percent, total[1]));
+        }
+    }
+
+    /**
+     * @param args the .hack file, optionally followed by the .map file (defaults to the .hack
+     *             path with a .map extension) and --cycles N to change the cycle limit.
+     */
+    public static void main(String[] args) throws IOException {
+        String hackPath = null;
+        String mapPath = null;
+        long maxCycles = DEFAULT_CYCLES;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--cycles") && i + 1 < args.length) {
+                maxCycles = Long.parseLong(args[++i]);
+            } else if (hackPath == null) {
+                hackPath = args[i];
+            } else if (mapPath == null) {
+                mapPath = args[i];
+            } else {
+                throw new InvalidParameterException("Unexpected argument " + args[i]);
+            }
+        }
+        if (hackPath == null || !hackPath.endsWith(".hack")) {
+            throw new InvalidParameterException("Expected a .hack file, optionally followed by its .map file");
+        }
+        if (mapPath == null) {
+            mapPath = hackPath.substring(0, hackPath.lastIndexOf('.')) + ".map";
+        }
+        HackProfiler profiler = new HackProfiler(readProgram(hackPath), SymbolMap.read(mapPath));
+        profiler.run(maxCycles);
+        profiler.report();
+    }
+}
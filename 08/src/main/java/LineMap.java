@@ -0,0 +1,158 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Maps lines of a generated file back to the lines of the source file they were generated from.
+ * <p>
+ * Each entry marks the first line of the generated file produced from a given source line; the
+ * entry covers every line up to the next entry. A map is stored next to the generated file, as
+ * that file's path plus ".lines", in the following binary format:
+ * <pre>
+ * int     magic "N2TL"
+ * int     version
+ * int     number of source files, followed by each file name (modified UTF-8)
+ * int     number of entries, followed by each entry as three ints:
+ *         generated line, source file index, source line
+ * </pre>
+ * Entries are sorted by generated line, so a line is resolved with a binary search.
+ * The same format is written by the assembler, the VM translator and the Jack compiler.
+ */
+public class LineMap {
+
+    public static final String EXTENSION = ".lines";
+
+    private static final int MAGIC = 0x4E32544C;
+    private static final int VERSION = 1;
+
+    private final List<String> files;
+    private final HashMap<String, Integer> fileIndexes;
+    private int[] lines;
+    private int[] sourceFiles;
+    private int[] sourceLines;
+    private int size;
+
+    public LineMap() {
+        this.files = new ArrayList<String>();
+        this.fileIndexes = new HashMap<String, Integer>();
+        this.lines = new int[256];
+        this.sourceFiles = new int[256];
+        this.sourceLines = new int[256];
+        this.size = 0;
+    }
+
+    /**
+     * Records that the generated file, from the given line on, comes from the given source line.
+     * Lines must be added in increasing order. Consecutive entries for the same source line are merged.
+     *
+     * @param line       the line of the generated file, starting from 1.
+     * @param sourceFile the name of the source file.
+     * @param sourceLine the line of the source file, starting from 1.
+     */
+    public void add(int line, String sourceFile, int sourceLine) {
+        Integer fileIndex = fileIndexes.get(sourceFile);
+        if (fileIndex == null) {
+            fileIndex = files.size();
+            files.add(sourceFile);
+            fileIndexes.put(sourceFile, fileIndex);
+        }
+        if (size > 0 && sourceFiles[size - 1] == fileIndex && sourceLines[size - 1] == sourceLine) {
+            return;
+        }
+        if (size == lines.length) {
+            lines = Arrays.copyOf(lines, size * 2);
+            sourceFiles = Arrays.copyOf(sourceFiles, size * 2);
+            sourceLines = Arrays.copyOf(sourceLines, size * 2);
+        }
+        lines[size] = line;
+        sourceFiles[size] = fileIndex;
+        sourceLines[size] = sourceLine;
+        size++;
+    }
+
+    /**
+     * Finds the entry covering the given line of the generated file.
+     *
+     * @param line a line of the generated file.
+     * @return the index of the entry, or -1 if the line is before the first entry.
+     */
+    public int find(int line) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lines[mid] <= line) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    public String getSourceFile(int entry) {
+        return files.get(sourceFiles[entry]);
+    }
+
+    public int getSourceLine(int entry) {
+        return sourceLines[entry];
+    }
+
+    /**
+     * Writes the map in the binary format.
+     *
+     * @param path the path of the map file.
+     */
+    public void write(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (String file : files) {
+                out.writeUTF(file);
+            }
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(lines[i]);
+                out.writeInt(sourceFiles[i]);
+                out.writeInt(sourceLines[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a map written by write().
+     *
+     * @param path the path of the map file.
+     * @return the map.
+     * @throws IOException if the file cannot be read or is not a line map.
+     */
+    public static LineMap read(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a line map");
+            }
+            LineMap map = new LineMap();
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String file = in.readUTF();
+                map.fileIndexes.put(file, i);
+                map.files.add(file);
+            }
+            map.size = in.readInt();
+            map.lines = new int[Math.max(map.size, 1)];
+            map.sourceFiles = new int[Math.max(map.size, 1)];
+            map.sourceLines = new int[Math.max(map.size, 1)];
+            for (int i = 0; i < map.size; i++) {
+                map.lines[i] = in.readInt();
+                map.sourceFiles[i] = in.readInt();
+                map.sourceLines[i] = in.readInt();
+            }
+            return map;
+        }
+    }
+}
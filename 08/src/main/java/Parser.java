@@ -41,6 +41,17 @@ public class Parser {
 
     }
 
+    /**
+     * Creates a parser which does not read the input file itself. Lines are supplied
+     * one at a time through load(), so that file I/O can happen on another thread.
+     *
+     * @param inFile the input file, used for error messages and the command's file name.
+     */
+    Parser(File inFile) {
+        this.inFile = inFile;
+        this.lineNumber = 0;
+    }
+
     /**
      * @return true if there are more commands in the input file, otherwise, return false.
      */
@@ -55,10 +66,41 @@ public class Parser {
      * true. Initially there is no current command.
      */
     public void advance() {
-        currentCommand = scanner.nextLine().trim();
+        load(scanner.nextLine());
+    }
+
+    /**
+     * Makes the given line the current command.
+     *
+     * @param line the next line of the input file.
+     */
+    void load(String line) {
+        currentCommand = line.trim();
         lineNumber++;
     }
 
+    /**
+     * Parses the current command into a VMCommand.
+     *
+     * @return the parsed command, or null if the current line is blank or a comment.
+     * @throws InvalidParameterException if command is not a valid command as per VM language specification.
+     */
+    public VMCommand toCommand() throws InvalidObjectException {
+        Command type = commandType();
+        if (type == null) {
+            return null;
+        }
+        String arg1 = null;
+        int arg2 = 0;
+        if (type != Command.C_RETURN) {
+            arg1 = arg1();
+        }
+        if (type == Command.C_PUSH || type == Command.C_POP || type == Command.C_FUNCTION || type == Command.C_CALL) {
+            arg2 = Integer.valueOf(arg2().trim());
+        }
+        return new VMCommand(type, arg1, arg2, inFile.getName(), lineNumber);
+    }
+
     /**
      * Returns the type of the current command or throws an InvalidParameterException,
      * specifying the line number and file where said exception occurs.
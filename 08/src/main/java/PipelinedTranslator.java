@@ -0,0 +1,162 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Translates .vm files as a three stage pipeline, so that reading the input overlaps with
+ * parsing and code generation:
+ * <p>
+ * 1. A reader thread reads lines from each file.
+ * 2. A parser thread classifies the lines and turns them into VMCommands.
+ * 3. The calling thread writes the commands through the CodeWriter.
+ * <p>
+ * The stages are connected by bounded queues, so memory use does not grow with the size of the
+ * input. Lines and commands are passed in batches to keep the cost of the hand-off low.
+ */
+public class PipelinedTranslator {
+
+    private static final int BATCH_SIZE = 256;
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final CodeWriter codeWriter;
+
+    /**
+     * @param codeWriter the CodeWriter that the translated commands are written to.
+     */
+    public PipelinedTranslator(CodeWriter codeWriter) {
+        this.codeWriter = codeWriter;
+    }
+
+    /**
+     * Translates each of the given files, in order.
+     *
+     * @param paths the paths of the .vm files to translate.
+     * @throws Exception if a file cannot be read or contains an invalid command.
+     */
+    public void translate(List<String> paths) throws Exception {
+        BlockingQueue<Batch<String>> lines = new ArrayBlockingQueue<Batch<String>>(QUEUE_CAPACITY);
+        BlockingQueue<Batch<VMCommand>> commands = new ArrayBlockingQueue<Batch<VMCommand>>(QUEUE_CAPACITY);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> reader = executor.submit(() -> {
+                read(paths, lines);
+                return null;
+            });
+            Future<?> parser = executor.submit(() -> {
+                parse(lines, commands);
+                return null;
+            });
+
+            Batch<VMCommand> batch;
+            while ((batch = commands.take()) != Batch.END) {
+                for (VMCommand command : batch.items) {
+                    codeWriter.write(command);
+                }
+            }
+            // Surface any failure from the earlier stages. The parser stops at its first error, and the
+            // reader may then be blocked on the full queue of lines, so the parser is checked first
+            // and the reader stopped if it failed.
+            try {
+                parser.get();
+            } catch (ExecutionException e) {
+                reader.cancel(true);
+                lines.clear();
+                throw e;
+            }
+            reader.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reader stage: reads every line of every file into batches.
+     */
+    private void read(List<String> paths, BlockingQueue<Batch<String>> out) throws IOException, InterruptedException {
+        try {
+            for (String path : paths) {
+                File file = new File(path);
+                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                    Batch<String> batch = new Batch<String>(file);
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        batch.items.add(line);
+                        if (batch.items.size() == BATCH_SIZE) {
+                            out.put(batch);
+                            batch = new Batch<String>(file);
+                        }
+                    }
+                    out.put(batch);
+                }
+            }
+        } finally {
+            out.put(Batch.end());
+        }
+    }
+
+    /**
+     * Parser stage: turns batches of lines into batches of commands, starting each file with a
+     * file marker.
+     */
+    private void parse(BlockingQueue<Batch<String>> in, BlockingQueue<Batch<VMCommand>> out) throws Exception {
+        try {
+            Parser parser = null;
+            File currentFile = null;
+            Batch<String> batch;
+            while ((batch = in.take()) != Batch.END) {
+                Batch<VMCommand> parsed = new Batch<VMCommand>(batch.file);
+                if (batch.file != currentFile) {
+                    currentFile = batch.file;
+                    parser = new Parser(currentFile);
+                    parsed.items.add(VMCommand.fileMarker(currentFile.getName()));
+                }
+                for (String line : batch.items) {
+                    parser.load(line);
+                    VMCommand command = parser.toCommand();
+                    if (command != null) {
+                        parsed.items.add(command);
+                    }
+                }
+                out.put(parsed);
+            }
+        } finally {
+            out.put(Batch.end());
+        }
+    }
+
+    /**
+     * A batch of items from a single file, passed between stages.
+     */
+    private static class Batch<T> {
+
+        @SuppressWarnings("rawtypes")
+        private static final Batch END = new Batch(null);
+
+        private final File file;
+        private final List<T> items;
+
+        private Batch(File file) {
+            this.file = file;
+            this.items = new ArrayList<T>(BATCH_SIZE);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Batch<T> end() {
+            return (Batch<T>) END;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A directory of previously translated assembly, one fragment per .vm file, keyed by a hash of
+ * the file's name and contents.
+ * <p>
+ * The CodeWriter numbers and prefixes its generated labels per file, so the assembly for a file
+ * does not depend on the files translated before it, and a cached fragment can be reused as is.
+ */
+public class TranslationCache {
+
+    /**
+     * Change this whenever the generated assembly changes, so old fragments are not reused.
+     */
+    private static final String VERSION = "VMTranslator-3";
+
+    private final File directory;
+
+    /**
+     * @param directory the cache directory, created if it does not exist.
+     * @throws IOException if the directory cannot be created.
+     */
+    public TranslationCache(String directory) throws IOException {
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + directory);
+        }
+    }
+
+    /**
+     * Computes the cache key of a .vm file. The file name is part of the key, as static
+     * variables and labels in the translation are named after it.
+     *
+     * @param fileName the name of the .vm file.
+     * @param contents the contents of the .vm file.
+     * @return the key, as a hex string.
+     */
+    public String key(String fileName, byte[] contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((VERSION + "\0" + fileName + "\0").getBytes(StandardCharsets.UTF_8));
+        byte[] hash = digest.digest(contents);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param key the key of a .vm file.
+     * @return the cached assembly for the file, or null if there is none.
+     */
+    public String get(String key) throws IOException {
+        File fragment = new File(directory, key + ".asm");
+        if (!fragment.isFile()) {
+            return null;
+        }
+        return new String(Files.readAllBytes(fragment.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores the assembly for a .vm file. The fragment is written to a temporary file first,
+     * so a concurrent or interrupted run never sees a partial fragment.
+     *
+     * @param key      the key of the .vm file.
+     * @param assembly the assembly translated from the file.
+     */
+    public void put(String key, String assembly) throws IOException {
+        File temp = File.createTempFile(key, ".tmp", directory);
+        Files.write(temp.toPath(), assembly.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), new File(directory, key + ".asm").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * A single parsed VM command. Produced by the Parser and consumed by the CodeWriter, so that
+ * parsing and code generation can run independently of each other.
+ */
+public class VMCommand {
+
+    /**
+     * Marks the end of the command stream in the pipelined translator.
+     */
+    public static final VMCommand END = new VMCommand(null, null, 0, null, 0);
+
+    private final Command type;
+    private final String arg1;
+    private final int arg2;
+    private final String fileName;
+    private final int lineNumber;
+
+    /**
+     * @param type       the command type, or null for a file marker.
+     * @param arg1       the first argument, or the command itself for C_ARITHMETIC.
+     * @param arg2       the second argument for C_PUSH, C_POP, C_FUNCTION and C_CALL.
+     * @param fileName   the .vm file this command was read from.
+     * @param lineNumber the line of the .vm file this command was read from.
+     */
+    public VMCommand(Command type, String arg1, int arg2, String fileName, int lineNumber) {
+        this.type = type;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.fileName = fileName;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Creates a marker which tells the CodeWriter that translation of a new file has started.
+     *
+     * @param fileName the name of the new .vm file.
+     */
+    public static VMCommand fileMarker(String fileName) {
+        return new VMCommand(null, null, 0, fileName, 0);
+    }
+
+    /**
+     * @return whether this is a marker for the start of a new file rather than a command.
+     */
+    public boolean isFileMarker() {
+        return type == null && this != END;
+    }
+
+    public Command getType() {
+        return type;
+    }
+
+    public String getArg1() {
+        return arg1;
+    }
+
+    public int getArg2() {
+        return arg2;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+}
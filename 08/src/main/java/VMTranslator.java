@@ -1,7 +1,7 @@
 
-import java.io.File;
-
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.List;
@@ -9,29 +9,165 @@ import java.util.List;
 public class VMTranslator {
 
 
-    public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
+    /**
+     * Translates every command of a .vm file.
+     *
+     * @param filePath   the path to the .vm file.
+     * @param codeWriter the CodeWriter to write the translation to.
+     */
+    private static void translateFile(String filePath, CodeWriter codeWriter) throws IOException {
+        if (filePath.endsWith(BinaryVMReader.EXTENSION)) {
+            translateBinaryFile(new File(filePath), codeWriter);
+            return;
+        }
+        Parser parser = new Parser(filePath);
+        codeWriter.setFileName(filePath.substring(filePath.lastIndexOf("/")+1));
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+            VMCommand command = parser.toCommand();
+            if (command != null) {
+                codeWriter.write(command);
+            }
+        }
+    }
+
+    /**
+     * Translates every command of a binary .vmb file. The file is named as its .vm equivalent, so
+     * that its labels and static variables are the same as if it had been compiled to text.
+     *
+     * @param file       the .vmb file.
+     * @param codeWriter the CodeWriter to write the translation to.
+     */
+    private static void translateBinaryFile(File file, CodeWriter codeWriter) throws IOException {
+        String name = file.getName();
+        codeWriter.setFileName(name.substring(0, name.length() - BinaryVMReader.EXTENSION.length()) + ".vm");
+        try (BinaryVMReader reader = new BinaryVMReader(file)) {
+            VMCommand command;
+            while ((command = reader.next()) != null) {
+                codeWriter.write(command);
+            }
+        }
+    }
+
+    /**
+     * Translates the given .vm files into one .asm file, reusing the cached translation of any file
+     * whose contents have not changed and caching the translation of any file which has.
+     *
+     * @param paths     the paths to the .vm files.
+     * @param bootstrap whether to start the program with the bootstrap code.
+     * @param outFile   the path to the .asm file.
+     * @param cache     the cache of translated files.
+     */
+    private static void translateCached(List<String> paths, boolean bootstrap, String outFile,
+                                        TranslationCache cache) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(outFile))) {
+            if (bootstrap) {
+                StringWriter assembly = new StringWriter();
+                CodeWriter codeWriter = new CodeWriter(new AsmTextOutput(assembly));
+                codeWriter.writeInit();
+                codeWriter.close();
+                out.write(assembly.toString());
+            }
+            for (String filePath : paths) {
+                File file = new File(filePath);
+                byte[] contents = Files.readAllBytes(file.toPath());
+                String key = cache.key(file.getName(), contents);
+                String fragment = cache.get(key);
+                if (fragment == null) {
+                    StringWriter assembly = new StringWriter();
+                    CodeWriter codeWriter = new CodeWriter(new AsmTextOutput(assembly));
+                    codeWriter.setFileName(file.getName());
+                    Parser parser = new Parser(file);
+                    BufferedReader reader = new BufferedReader(new StringReader(new String(contents, StandardCharsets.UTF_8)));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        parser.load(line);
+                        VMCommand command = parser.toCommand();
+                        if (command != null) {
+                            codeWriter.write(command);
+                        }
+                    }
+                    codeWriter.close();
+                    fragment = assembly.toString();
+                    cache.put(key, fragment);
+                }
+                out.write(fragment);
+            }
+        }
+    }
+
+    private static boolean hasBinaryInput(List<String> paths) {
+        for (String path : paths) {
+            if (path.endsWith(BinaryVMReader.EXTENSION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Translates a .vm file, or a directory of .vm files, into a single .asm file. Binary .vmb
+     * files written by the Jack compiler are accepted wherever .vm files are.
+     *
+     * @param args the .vm file or directory, optionally preceded by:
+     *             --pipeline to read, parse and write on separate threads.
+     *             --hack to assemble straight to a .hack file instead of writing .asm.
+     *             --lines to also write a binary line map from the output file back to the .vm lines.
+     *             --map to also write a .map file relating ROM addresses to VM functions and lines.
+     *             --cache DIR to reuse the translation of unchanged files from the cache directory DIR.
+     */
+    public static void main(String[] args) throws Exception {
+        boolean pipeline = false;
+        boolean hack = false;
+        boolean map = false;
+        boolean lines = false;
+        String cacheDir = null;
+        String inputPath = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--cache") && i + 1 < args.length) {
+                cacheDir = args[++i];
+            } else if (arg.equals("--pipeline")) {
+                pipeline = true;
+            } else if (arg.equals("--hack")) {
+                hack = true;
+            } else if (arg.equals("--map")) {
+                map = true;
+            } else if (arg.equals("--lines")) {
+                lines = true;
+            } else if (arg.startsWith("--")) {
+                throw new InvalidParameterException("Unknown option " + arg);
+            } else if (inputPath == null) {
+                inputPath = arg;
+            } else {
+                inputPath = null;
+                break;
+            }
+        }
+        if (inputPath == null) {
             throw new InvalidParameterException("Expected one argument only - .vm file or" +
                     " a directory containing at least one .vm file");
         }
-        File input = new File(args[0]);
+        File input = new File(inputPath);
         List<String> paths = new ArrayList<String>();
-        CodeWriter codeWriter;
+        String outPath;
         if (input.isDirectory()) {
             for (File file : input.listFiles()) {
-                if (file.getPath().endsWith(".vm")) {
-                    paths.add(file.getPath());
+                String path = file.getPath();
+                // A binary file is only used when the directory does not also hold its text version.
+                if (path.endsWith(".vm") || (path.endsWith(BinaryVMReader.EXTENSION)
+                        && !new File(path.substring(0, path.length() - 1)).isFile())) {
+                    paths.add(path);
                 }
             }
             if (paths.size() == 0) {
                 throw new InvalidParameterException("No .vm files in directory");
             }
-            codeWriter = new CodeWriter(input.getPath() + input.getPath().substring(input.getPath().lastIndexOf("/")));
-            codeWriter.writeInit();
+            outPath = input.getPath() + input.getPath().substring(input.getPath().lastIndexOf("/"));
         } else if (input.isFile()) {
-            if (input.getPath().endsWith(".vm")) {
+            if (input.getPath().endsWith(".vm") || input.getPath().endsWith(BinaryVMReader.EXTENSION)) {
                 paths.add(input.getPath());
-                codeWriter = new CodeWriter(paths.get(0).replace(".vm", ""));
+                outPath = paths.get(0).substring(0, paths.get(0).lastIndexOf('.'));
             } else {
                 throw new InvalidParameterException("Not a .vm file");
             }
@@ -39,46 +175,47 @@ public class VMTranslator {
             throw new InvalidParameterException("Not a .vm file or directory containing .vm files");
         }
 
-        for (String filePath : paths) {
-            Parser parser = new Parser(filePath);
-            codeWriter.setFileName(filePath.substring(filePath.lastIndexOf("/")+1));
-            while (parser.hasMoreCommands()) {
-                parser.advance();
-                Command type = parser.commandType();
-                if (type == null) {
-                    continue;
-                }
-                else if (type == Command.C_RETURN){
-                    codeWriter.writeReturn();
-                    continue;
-                }
-                String arg1 = parser.arg1();
-                if (type == Command.C_ARITHMETIC) {
-                    codeWriter.writeArithmetic(arg1);
-                }
-                else if (type == Command.C_POP || type == Command.C_PUSH) {
-                    String arg2 = parser.arg2();
-                    codeWriter.writePushPop(type, arg1, Integer.valueOf(arg2.trim()));
-                }
-                else if (type == Command.C_FUNCTION){
-                    String arg2 = parser.arg2();
-                    codeWriter.writeFunction(arg1, Integer.valueOf(arg2.trim()));
-                }
-                else if (type == Command.C_CALL){
-                    String arg2 = parser.arg2();
-                    codeWriter.writeCall(arg1,Integer.valueOf(arg2.trim()));
-                }
-                else if (type == Command.C_IF){
-                    codeWriter.writeIfGoto(arg1);
-                }
-                else if (type == Command.C_GOTO){
-                    codeWriter.writeGoto(arg1);
-                }
-                else if (type == Command.C_LABEL){
-                    codeWriter.writeLabel(arg1);
-                }
+        String outFile = outPath + (hack ? ".hack" : ".asm");
+        if ((pipeline || cacheDir != null) && hasBinaryInput(paths)) {
+            throw new InvalidParameterException("Binary " + BinaryVMReader.EXTENSION
+                    + " files can not be translated with --pipeline or --cache");
+        }
+        if (cacheDir != null) {
+            if (pipeline || hack || map || lines) {
+                throw new InvalidParameterException("--cache can not be combined with other options");
+            }
+            translateCached(paths, input.isDirectory(), outFile, new TranslationCache(cacheDir));
+            return;
+        }
+
+        CodeWriter codeWriter = hack ? new CodeWriter(new HackOutput(outFile)) : new CodeWriter(outPath);
+        SymbolMap symbolMap = null;
+        if (map) {
+            symbolMap = new SymbolMap();
+            codeWriter.setSymbolMap(symbolMap);
+        }
+        LineMap lineMap = null;
+        if (lines) {
+            lineMap = new LineMap();
+            codeWriter.setLineMap(lineMap);
+        }
+        if (input.isDirectory()) {
+            codeWriter.writeInit();
+        }
+
+        if (pipeline) {
+            new PipelinedTranslator(codeWriter).translate(paths);
+        } else {
+            for (String filePath : paths) {
+                translateFile(filePath, codeWriter);
             }
         }
         codeWriter.close();
+        if (symbolMap != null) {
+            symbolMap.write(outPath + ".map");
+        }
+        if (lineMap != null) {
+            lineMap.write(outFile + LineMap.EXTENSION);
+        }
     }
 }
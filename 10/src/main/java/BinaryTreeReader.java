@@ -0,0 +1,142 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Reads the compact binary parse tree format written by the BinaryTreeWriter (.jackt files), and
+ * replays the tree into a ParseTreeOutput, such as an XmlWriter, exactly as the CompilationEngine
+ * built it.
+ * <p>
+ * The format is:
+ * <pre>
+ * int      magic "N2TT"
+ * byte     version
+ * 32 bytes hash of the .jack file the tree was parsed from
+ * then for each event, an opcode byte followed by its operands:
+ *   0-14   start element    the element's order in Element
+ *   15     end of the innermost element
+ *   16     keyword          index byte into KEYWORDS
+ *   17     symbol           the ASCII character
+ *   18     new identifier   name
+ *   19     identifier       index short of an earlier new identifier
+ *   20     integer constant value short
+ *   21     string constant  name
+ * </pre>
+ * Names are written as by DataOutput.writeUTF. Each identifier is written in full the first time
+ * it appears in the file, and after that by the order in which it first appeared.
+ */
+public class BinaryTreeReader implements Closeable {
+
+    private static final Element[] ELEMENTS = Element.values();
+
+    private final DataInputStream in;
+    private final String fileName;
+    private final byte[] hash;
+
+    /**
+     * @param file the .jackt file.
+     * @throws IOException if the file cannot be read or is not in the binary parse tree format.
+     */
+    public BinaryTreeReader(File file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        this.fileName = file.getName();
+        this.hash = new byte[BinaryTreeWriter.HASH_LENGTH];
+        try {
+            if (in.readInt() != BinaryTreeWriter.MAGIC || in.readUnsignedByte() != BinaryTreeWriter.VERSION) {
+                throw new IOException(file.getPath() + " is not a binary parse tree file");
+            }
+            in.readFully(hash);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the hash of the source a tree was parsed from, without reading the tree.
+     *
+     * @param file the .jackt file.
+     * @return the hash, or null if the file does not exist or is not a binary parse tree file.
+     */
+    public static byte[] readHash(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (BinaryTreeReader reader = new BinaryTreeReader(file)) {
+            return reader.getHash();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * Reads the rest of the tree, writing each element and token to the output.
+     *
+     * @param output the output to write to. It is not closed.
+     * @throws IOException if the file cannot be read or does not hold a valid tree.
+     */
+    public void replay(ParseTreeOutput output) throws IOException {
+        Deque<Element> open = new ArrayDeque<>();
+        List<String> identifiers = new ArrayList<>();
+        int opcode;
+        while ((opcode = in.read()) != -1) {
+            if (opcode < ELEMENTS.length) {
+                open.push(ELEMENTS[opcode]);
+                output.startElement(ELEMENTS[opcode]);
+                continue;
+            }
+            switch (opcode) {
+                case BinaryTreeWriter.OP_END:
+                    if (open.isEmpty()) {
+                        throw new IOException(fileName + ": end of an element which was not started");
+                    }
+                    output.endElement(open.pop());
+                    break;
+                case BinaryTreeWriter.OP_KEYWORD:
+                    int keyword = in.readUnsignedByte();
+                    if (keyword >= BinaryTreeWriter.KEYWORDS.length) {
+                        throw new IOException(fileName + ": invalid keyword " + keyword);
+                    }
+                    output.token(Token.KEYWORD, BinaryTreeWriter.KEYWORDS[keyword]);
+                    break;
+                case BinaryTreeWriter.OP_SYMBOL:
+                    output.token(Token.SYMBOL, String.valueOf((char) in.readUnsignedByte()));
+                    break;
+                case BinaryTreeWriter.OP_NEW_IDENTIFIER:
+                    String name = in.readUTF();
+                    identifiers.add(name);
+                    output.token(Token.IDENTIFIER, name);
+                    break;
+                case BinaryTreeWriter.OP_IDENTIFIER:
+                    int index = in.readUnsignedShort();
+                    if (index >= identifiers.size()) {
+                        throw new IOException(fileName + ": invalid identifier " + index);
+                    }
+                    output.token(Token.IDENTIFIER, identifiers.get(index));
+                    break;
+                case BinaryTreeWriter.OP_INT_CONST:
+                    output.token(Token.INT_CONST, Integer.toString(in.readUnsignedShort()));
+                    break;
+                case BinaryTreeWriter.OP_STRING_CONST:
+                    output.token(Token.STRING_CONST, in.readUTF());
+                    break;
+                default:
+                    throw new IOException(fileName + ": invalid opcode " + opcode);
+            }
+        }
+        if (!open.isEmpty()) {
+            throw new IOException(fileName + " ends inside " + open.peek().getTag());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
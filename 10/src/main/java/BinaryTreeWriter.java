@@ -0,0 +1,113 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the parse tree in a compact binary format (.jackt files), described in BinaryTreeReader.
+ * The file starts with a hash of the source it was parsed from, so the JackAnalyser can tell
+ * whether a tree is up to date without parsing the source again.
+ */
+public class BinaryTreeWriter implements ParseTreeOutput {
+
+    public static final String EXTENSION = ".jackt";
+    public static final int HASH_LENGTH = 32;
+
+    static final int MAGIC = 0x4E325454;
+    static final int VERSION = 1;
+
+    static final int OP_END = 15;
+    static final int OP_KEYWORD = 16;
+    static final int OP_SYMBOL = 17;
+    static final int OP_NEW_IDENTIFIER = 18;
+    static final int OP_IDENTIFIER = 19;
+    static final int OP_INT_CONST = 20;
+    static final int OP_STRING_CONST = 21;
+
+    static final String[] KEYWORDS = {"class", "method", "function", "constructor", "int", "boolean", "char", "void",
+            "var", "static", "field", "let", "do", "if", "else", "while", "return", "true", "false", "null", "this"};
+
+    private static final Map<String, Integer> KEYWORD_CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            KEYWORD_CODES.put(KEYWORDS[i], i);
+        }
+    }
+
+    private final DataOutputStream out;
+    // The identifiers written so far, by the order in which they first appeared.
+    private final Map<String, Integer> identifiers = new HashMap<>();
+
+    /**
+     * @param outPath the path to the .jackt file.
+     * @param hash    the hash of the source being parsed, HASH_LENGTH bytes.
+     * @throws IOException if the file cannot be opened.
+     */
+    public BinaryTreeWriter(String outPath, byte[] hash) throws IOException {
+        if (hash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("The hash must be " + HASH_LENGTH + " bytes");
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outPath), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.write(hash);
+    }
+
+    @Override
+    public void startElement(Element element) throws IOException {
+        out.writeByte(element.ordinal());
+    }
+
+    @Override
+    public void endElement(Element element) throws IOException {
+        out.writeByte(OP_END);
+    }
+
+    @Override
+    public void token(Token type, CharSequence text) throws IOException {
+        switch (type) {
+            case KEYWORD:
+                Integer keyword = KEYWORD_CODES.get(text.toString());
+                if (keyword == null) {
+                    throw new IOException("Keyword: " + text + " not valid keyword");
+                }
+                out.writeByte(OP_KEYWORD);
+                out.writeByte(keyword);
+                break;
+            case SYMBOL:
+                out.writeByte(OP_SYMBOL);
+                out.writeByte(text.charAt(0));
+                break;
+            case IDENTIFIER:
+                String name = text.toString();
+                Integer index = identifiers.get(name);
+                if (index != null) {
+                    out.writeByte(OP_IDENTIFIER);
+                    out.writeShort(index);
+                } else {
+                    if (identifiers.size() > 0xFFFF) {
+                        throw new IOException("Too many identifiers for a binary parse tree");
+                    }
+                    identifiers.put(name, identifiers.size());
+                    out.writeByte(OP_NEW_IDENTIFIER);
+                    out.writeUTF(name);
+                }
+                break;
+            case INT_CONST:
+                out.writeByte(OP_INT_CONST);
+                out.writeShort(Integer.parseInt(text.toString()));
+                break;
+            case STRING_CONST:
+                out.writeByte(OP_STRING_CONST);
+                out.writeUTF(text.toString());
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -7,8 +7,7 @@ public class CompilationEngine {
 
     private String currentToken;
     private File inFile;
-    private File outFile;
-    private PrintWriter writer;
+    private ParseTreeOutput output;
     private JackTokeniser tokeniser;
 
     // REGEX
@@ -30,14 +29,27 @@ public class CompilationEngine {
      * compileClass().
      *
      * @param inPath  the path to the input file.
-     * @param outPath the path to the output file.
+     * @param outPath the path to the output .xml file.
      * @throws IOException if input or output file cannot be found.
      */
 
     public CompilationEngine(String inPath, String outPath) throws IOException {
+        this(inPath, new XmlWriter(outPath));
+    }
+
+    /**
+     * creates a new compilation engine which
+     * writes its parse tree to the given output,
+     * such as a BinaryTreeWriter.
+     *
+     * @param inPath the path to the input file.
+     * @param output the output to write the parse tree to, closed by close().
+     * @throws IOException if input file cannot be found.
+     */
+
+    public CompilationEngine(String inPath, ParseTreeOutput output) throws IOException {
         this.inFile = new File(inPath);
-        this.outFile = new File(outPath);
-        this.writer = new PrintWriter(new BufferedWriter(new FileWriter(outFile)));
+        this.output = output;
         this.tokeniser = new JackTokeniser(inPath);
     }
 
@@ -48,7 +60,7 @@ public class CompilationEngine {
 
     public void compileClass() throws Exception {
         advance();
-        writer.println("<class>");
+        output.startElement(Element.CLASS);
         eat("class");
 
         // class name must be same as file name
@@ -65,7 +77,7 @@ public class CompilationEngine {
             compileSubroutine();
         }
         eat("}");
-        writer.println("</class>");
+        output.endElement(Element.CLASS);
     }
 
     private void advance() throws Exception {
@@ -85,11 +97,11 @@ public class CompilationEngine {
      */
 
     public void compileClassVarDec() throws Exception {
-        writer.println("<classVarDec>");
+        output.startElement(Element.CLASS_VAR_DEC);
         // static/field
         eat(currentToken);
         processVarDecs();
-        writer.println("</classVarDec>");
+        output.endElement(Element.CLASS_VAR_DEC);
     }
 
 
@@ -99,7 +111,7 @@ public class CompilationEngine {
      */
 
     public void compileSubroutine() throws Exception {
-        writer.println("<subroutineDec>");
+        output.startElement(Element.SUBROUTINE_DEC);
         eat(currentToken);
 
         // void or type
@@ -116,7 +128,7 @@ public class CompilationEngine {
         eat(")");
 
         // subroutine body
-        writer.println("<subroutineBody>");
+        output.startElement(Element.SUBROUTINE_BODY);
         eat("{");
 
         // optional varDecs
@@ -127,9 +139,9 @@ public class CompilationEngine {
         // statements
         compileStatements();
         eat("}");
-        writer.println("</subroutineBody>");
+        output.endElement(Element.SUBROUTINE_BODY);
 
-        writer.println("</subroutineDec>");
+        output.endElement(Element.SUBROUTINE_DEC);
     }
 
 
@@ -139,7 +151,7 @@ public class CompilationEngine {
      */
 
     public void compileParameterList() throws Exception {
-        writer.println("<parameterList>");
+        output.startElement(Element.PARAMETER_LIST);
         while (currentToken.matches(TYPE_REGEX) || tokeniser.tokenType() == Token.IDENTIFIER) {
             processType();
             while (currentToken.equals(",")) {
@@ -150,7 +162,7 @@ public class CompilationEngine {
                 processIdentifier();
             }
         }
-        writer.println("</parameterList>");
+        output.endElement(Element.PARAMETER_LIST);
     }
 
     /**
@@ -158,10 +170,10 @@ public class CompilationEngine {
      */
 
     public void compileVarDec() throws Exception {
-        writer.println("<varDec>");
+        output.startElement(Element.VAR_DEC);
         eat("var");
         processVarDecs();
-        writer.println("</varDec>");
+        output.endElement(Element.VAR_DEC);
     }
 
     /**
@@ -170,7 +182,7 @@ public class CompilationEngine {
      */
 
     public void compileStatements() throws Exception {
-        writer.println("<statements>");
+        output.startElement(Element.STATEMENTS);
         while (currentToken.matches(STATEMENT_BEGINNING_REGEX)) {
             switch (currentToken) {
                 case "if":
@@ -190,7 +202,7 @@ public class CompilationEngine {
                     break;
             }
         }
-        writer.println("</statements>");
+        output.endElement(Element.STATEMENTS);
     }
 
     /**
@@ -198,11 +210,11 @@ public class CompilationEngine {
      */
 
     public void compileDo() throws Exception {
-        writer.println("<doStatement>");
+        output.startElement(Element.DO_STATEMENT);
         eat("do");
         processSubroutineCall();
         eat(";");
-        writer.println("</doStatement>");
+        output.endElement(Element.DO_STATEMENT);
     }
 
 
@@ -211,7 +223,7 @@ public class CompilationEngine {
      */
 
     public void compileLet() throws Exception {
-        writer.println("<letStatement>");
+        output.startElement(Element.LET_STATEMENT);
         eat("let");
         processIdentifier();
         if (currentToken.equals("[")) {
@@ -222,7 +234,7 @@ public class CompilationEngine {
         eat("=");
         compileExpression();
         eat(";");
-        writer.println("</letStatement>");
+        output.endElement(Element.LET_STATEMENT);
     }
 
     /**
@@ -230,10 +242,10 @@ public class CompilationEngine {
      */
 
     public void compileWhile() throws Exception {
-        writer.println("<whileStatement>");
+        output.startElement(Element.WHILE_STATEMENT);
         eat("while");
         processStatementWithConditionAndCodeBlock();
-        writer.println("</whileStatement>");
+        output.endElement(Element.WHILE_STATEMENT);
     }
 
 
@@ -243,7 +255,7 @@ public class CompilationEngine {
      */
 
     public void compileIf() throws Exception {
-        writer.println("<ifStatement>");
+        output.startElement(Element.IF_STATEMENT);
         eat("if");
         processStatementWithConditionAndCodeBlock();
 
@@ -256,7 +268,7 @@ public class CompilationEngine {
             eat("}");
         }
 
-        writer.println("</ifStatement>");
+        output.endElement(Element.IF_STATEMENT);
     }
 
     /**
@@ -264,13 +276,13 @@ public class CompilationEngine {
      */
 
     public void compileReturn() throws Exception {
-        writer.println("<returnStatement>");
+        output.startElement(Element.RETURN_STATEMENT);
         eat("return");
         if (!currentToken.equals(";")) {
             compileExpression();
         }
         eat(";");
-        writer.println("</returnStatement>");
+        output.endElement(Element.RETURN_STATEMENT);
     }
 
     /**
@@ -278,13 +290,13 @@ public class CompilationEngine {
      */
 
     public void compileExpression() throws Exception {
-        writer.println("<expression>");
+        output.startElement(Element.EXPRESSION);
         compileTerm();
         while ((currentToken.matches(BINARY_OPERATORS))) {
             eat(currentToken);
             compileTerm();
         }
-        writer.println("</expression>");
+        output.endElement(Element.EXPRESSION);
     }
 
     /**
@@ -305,7 +317,7 @@ public class CompilationEngine {
      */
 
     public void compileTerm() throws Exception {
-        writer.println("<term>");
+        output.startElement(Element.TERM);
 
         // Lookahead
         if (tokeniser.tokenType() == Token.IDENTIFIER) {
@@ -339,7 +351,7 @@ public class CompilationEngine {
         } else {
             throw new Exception("Invalid syntax for term");
         }
-        writer.println("</term>");
+        output.endElement(Element.TERM);
     }
 
 
@@ -348,7 +360,7 @@ public class CompilationEngine {
      */
 
     public void compileExpressionList() throws Exception {
-        writer.println("<expressionList>");
+        output.startElement(Element.EXPRESSION_LIST);
         if (!currentToken.equals(")")) {
             compileExpression();
             while (currentToken.equals(",")) {
@@ -356,12 +368,11 @@ public class CompilationEngine {
                 compileExpression();
             }
         }
-        writer.println("</expressionList>");
+        output.endElement(Element.EXPRESSION_LIST);
     }
 
-    public void close() {
-        writer.flush();
-        writer.close();
+    public void close() throws IOException {
+        output.close();
     }
 
     private void eat(String token) throws Exception {
@@ -433,22 +444,18 @@ public class CompilationEngine {
     private void tokenise() throws Exception {
         Token type = tokeniser.tokenType();
         switch (type) {
-            case KEYWORD:
-                writer.println("<keyword> " + tokeniser.keyWord() + " </keyword>");
-                break;
-            case SYMBOL:
-                writer.println("<symbol> " + tokeniser.getSym() + " </symbol>");
-                break;
             case WHITESPACE:
                 break;
             case STRING_CONST:
-                writer.println(("<stringConstant> " + tokeniser.stringVal() + " </stringConstant>").replaceAll("\"", ""));
+                // without the quotes
+                CharSequence token = tokeniser.token();
+                output.token(type, token.subSequence(1, token.length() - 1));
                 break;
             case INT_CONST:
-                writer.println("<integerConstant> " + tokeniser.intVal() + " </integerConstant>");
+                output.token(type, Integer.toString(tokeniser.intVal()));
                 break;
-            case IDENTIFIER:
-                writer.println("<identifier> " + tokeniser.getIdent() + " </identifier>");
+            default:
+                output.token(type, tokeniser.token());
         }
     }
 }
@@ -0,0 +1,35 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The non-terminal elements of the parse tree, with their XML tags pre-encoded for the XmlWriter.
+ * The order is the element's code in the binary parse tree format.
+ */
+public enum Element {
+    CLASS("class"), CLASS_VAR_DEC("classVarDec"), SUBROUTINE_DEC("subroutineDec"),
+    PARAMETER_LIST("parameterList"), SUBROUTINE_BODY("subroutineBody"), VAR_DEC("varDec"),
+    STATEMENTS("statements"), LET_STATEMENT("letStatement"), IF_STATEMENT("ifStatement"),
+    WHILE_STATEMENT("whileStatement"), DO_STATEMENT("doStatement"), RETURN_STATEMENT("returnStatement"),
+    EXPRESSION("expression"), TERM("term"), EXPRESSION_LIST("expressionList");
+
+    private final String tag;
+    private final byte[] startTag;
+    private final byte[] endTag;
+
+    Element(String tag) {
+        this.tag = tag;
+        this.startTag = ("<" + tag + ">\n").getBytes(StandardCharsets.US_ASCII);
+        this.endTag = ("</" + tag + ">\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    byte[] getStartTag() {
+        return startTag;
+    }
+
+    byte[] getEndTag() {
+        return endTag;
+    }
+}
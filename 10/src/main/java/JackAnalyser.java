@@ -1,16 +1,46 @@
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.InvalidParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class JackAnalyser {
 
+    /**
+     * Part of every source hash. Change this whenever the parse tree the analyser builds changes,
+     * so trees parsed by an older version are not taken to be up to date.
+     */
+    private static final String VERSION = "JackAnalyser-1";
+
+    // Write binary parse trees instead of XML.
+    private boolean trees;
+    // Write XML by way of the binary parse trees, only parsing the files whose trees are out of date.
+    private boolean cached;
 
     private List<String> processArgs(String[] args) throws FileNotFoundException {
-        if (args.length > 1) {
-            throw new InvalidParameterException("Expected only one ARG - provide a directory or a single .jack file.");
+        List<String> arguments = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--tree")) {
+                trees = true;
+            } else if (arg.equals("--cached")) {
+                cached = true;
+            } else if (arg.startsWith("--")) {
+                throw new InvalidParameterException("Unknown option " + arg);
+            } else {
+                arguments.add(arg);
+            }
         }
-        File file = new File(args[0]);
+        if (arguments.size() != 1) {
+            throw new InvalidParameterException("Expected only one ARG - provide a directory, a single .jack file or a "
+                    + BinaryTreeWriter.EXTENSION + " file.");
+        }
+        File file = new File(arguments.get(0));
         List<String> paths = new ArrayList<>();
         if (file.isDirectory()) {
             for (File inputs : file.listFiles()) {
@@ -21,7 +51,8 @@ public class JackAnalyser {
             if (paths.size() == 0) {
                 throw new FileNotFoundException("No .jack files in directory");
             }
-        } else if (file.isFile() && file.getName().endsWith(".jack")) {
+        } else if (file.isFile() && (file.getName().endsWith(".jack")
+                || file.getName().endsWith(BinaryTreeWriter.EXTENSION))) {
             paths.add(file.getPath());
         } else {
             throw new FileNotFoundException("Not a valid file or directory");
@@ -32,10 +63,76 @@ public class JackAnalyser {
 
     private void compile(List<String> paths) throws Exception {
         for (String path : paths) {
-            CompilationEngine compilationEngine = new CompilationEngine(path, path.replace(".jack", ".xml"));
+            if (path.endsWith(BinaryTreeWriter.EXTENSION)) {
+                convert(path);
+            } else if (trees || cached) {
+                String treePath = path.replaceAll("\\.jack$", BinaryTreeWriter.EXTENSION);
+                byte[] hash = hash(path);
+                if (!Arrays.equals(hash, BinaryTreeReader.readHash(new File(treePath)))) {
+                    parse(path, treePath, new BinaryTreeWriter(treePath, hash));
+                }
+                if (cached) {
+                    convert(treePath);
+                }
+            } else {
+                String xmlPath = path.replaceAll("\\.jack$", ".xml");
+                parse(path, xmlPath, new XmlWriter(xmlPath));
+            }
+        }
+    }
+
+    /**
+     * Parses a .jack file. If it cannot be parsed, the output file is deleted, so that a partial
+     * tree is never taken to be up to date.
+     *
+     * @param path    the path to the .jack file.
+     * @param outPath the path to the output file.
+     * @param output  the output to write the parse tree to.
+     */
+    private void parse(String path, String outPath, ParseTreeOutput output) throws Exception {
+        CompilationEngine compilationEngine = new CompilationEngine(path, output);
+        try {
             compilationEngine.compileClass();
+        } catch (Exception e) {
             compilationEngine.close();
+            Files.deleteIfExists(Paths.get(outPath));
+            throw e;
+        }
+        compilationEngine.close();
+    }
+
+    /**
+     * Converts a binary parse tree to XML, written beside it.
+     *
+     * @param treePath the path to the .jackt file.
+     */
+    private void convert(String treePath) throws IOException {
+        XmlWriter xmlWriter = new XmlWriter(treePath.replaceAll("\\.jackt$", ".xml"));
+        try (BinaryTreeReader reader = new BinaryTreeReader(new File(treePath))) {
+            reader.replay(xmlWriter);
+        } finally {
+            xmlWriter.close();
+        }
+    }
+
+    /**
+     * Computes the hash a binary parse tree records of its source: the SHA-256 of the analyser's
+     * version, the charset the file is read in, the file's name, as the class name is checked against
+     * it, and the file's contents.
+     *
+     * @param path the path to the .jack file.
+     * @return the hash, BinaryTreeWriter.HASH_LENGTH bytes.
+     */
+    private static byte[] hash(String path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
+        String prefix = VERSION + "\0" + Charset.defaultCharset() + "\0" + new File(path).getName() + "\0";
+        digest.update(prefix.getBytes(StandardCharsets.UTF_8));
+        return digest.digest(Files.readAllBytes(Paths.get(path)));
     }
 
     public static void main(String[] args) throws Exception {
@@ -38,6 +38,15 @@ public class JackTokeniser {
         return currentToken.toString();
     }
 
+    /**
+     * Provides the text of the current token without copying it. The text is only valid until the next call to advance.
+     *
+     * @return the text of the current token.
+     */
+    public CharSequence token() {
+        return currentToken;
+    }
+
     /**
      * Checks to see if there are more tokens in the input.
      *
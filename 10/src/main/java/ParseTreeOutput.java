@@ -0,0 +1,36 @@
+import java.io.IOException;
+
+/**
+ * The destination of the parse tree built by the CompilationEngine. Elements are started and
+ * ended in nested order, and each token is written inside the innermost element started.
+ */
+public interface ParseTreeOutput {
+
+    /**
+     * Starts an element.
+     *
+     * @param element the element.
+     */
+    void startElement(Element element) throws IOException;
+
+    /**
+     * Ends the innermost element started.
+     *
+     * @param element the element, which must be the innermost element started.
+     */
+    void endElement(Element element) throws IOException;
+
+    /**
+     * Writes a token. The text is only read during the call, so it may be a buffer which is
+     * reused for the next token.
+     *
+     * @param type the type of the token. WHITESPACE tokens are ignored.
+     * @param text the text of the token, unescaped. String constants are given without their quotes.
+     */
+    void token(Token type, CharSequence text) throws IOException;
+
+    /**
+     * Finishes writing and closes the output.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the parse tree as XML, one tag or token per line, in the format of the course's
+ * comparison files.
+ * <p>
+ * Tags are pre-encoded, and tokens are encoded as UTF-8 straight from the tokeniser's text into
+ * a buffer which is written to the file when it fills, so no strings are built per line. The XML
+ * special characters are escaped from a table, in string constants as well as symbols.
+ */
+public class XmlWriter implements ParseTreeOutput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // The most bytes one character of text can take, as an escape or a UTF-8 sequence.
+    private static final int MAX_CHAR_BYTES = 6;
+    private static final String SYMBOLS = "{}()[].,;+-*/&|<>=~";
+
+    // The bytes written in place of each ASCII character, or null where the character is written as is.
+    private static final byte[][] ESCAPES = new byte[128][];
+    // The whole line written for each symbol, by character.
+    private static final byte[][] SYMBOL_LINES = new byte[128][];
+    // The bytes written before and after the text of each type of token, by order in Token.
+    private static final byte[][] TOKEN_STARTS = new byte[Token.values().length][];
+    private static final byte[][] TOKEN_ENDS = new byte[Token.values().length][];
+
+    static {
+        ESCAPES['<'] = ascii("&lt;");
+        ESCAPES['>'] = ascii("&gt;");
+        ESCAPES['&'] = ascii("&amp;");
+        ESCAPES['"'] = ascii("&quot;");
+        String[] tags = {"keyword", "symbol", "identifier", "integerConstant", "stringConstant"};
+        for (Token type : Token.values()) {
+            if (type != Token.WHITESPACE) {
+                TOKEN_STARTS[type.ordinal()] = ascii("<" + tags[type.ordinal()] + "> ");
+                TOKEN_ENDS[type.ordinal()] = ascii(" </" + tags[type.ordinal()] + ">\n");
+            }
+        }
+        for (char symbol : SYMBOLS.toCharArray()) {
+            String text = ESCAPES[symbol] == null
+                    ? String.valueOf(symbol) : new String(ESCAPES[symbol], StandardCharsets.US_ASCII);
+            SYMBOL_LINES[symbol] = ascii("<symbol> " + text + " </symbol>\n");
+        }
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * @param outPath the path to the .xml file.
+     * @throws IOException if the file cannot be opened.
+     */
+    public XmlWriter(String outPath) throws IOException {
+        this.channel = FileChannel.open(Paths.get(outPath), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void startElement(Element element) throws IOException {
+        put(element.getStartTag());
+    }
+
+    @Override
+    public void endElement(Element element) throws IOException {
+        put(element.getEndTag());
+    }
+
+    @Override
+    public void token(Token type, CharSequence text) throws IOException {
+        if (type == Token.WHITESPACE) {
+            return;
+        }
+        if (type == Token.SYMBOL && text.length() == 1 && text.charAt(0) < 128
+                && SYMBOL_LINES[text.charAt(0)] != null) {
+            put(SYMBOL_LINES[text.charAt(0)]);
+            return;
+        }
+        put(TOKEN_STARTS[type.ordinal()]);
+        putText(text);
+        put(TOKEN_ENDS[type.ordinal()]);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (buffer.remaining() < bytes.length) {
+            flush();
+        }
+        buffer.put(bytes);
+    }
+
+    /**
+     * Writes text as UTF-8, escaping the XML special characters.
+     */
+    private void putText(CharSequence text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (buffer.remaining() < MAX_CHAR_BYTES) {
+                flush();
+            }
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = ESCAPES[c];
+                if (escape == null) {
+                    buffer.put((byte) c);
+                } else {
+                    buffer.put(escape);
+                }
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
@@ -0,0 +1,25 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The VM arithmetic and logical commands, with their names pre-encoded for the VMWriter.
+ * The order is the command's opcode in the binary VM format.
+ */
+public enum ArithmeticCommand {
+    ADD("add"), SUB("sub"), NEG("neg"), EQ("eq"), GT("gt"), LT("lt"), AND("and"), OR("or"), NOT("not");
+
+    private final String text;
+    private final byte[] bytes;
+
+    ArithmeticCommand(String text) {
+        this.text = text;
+        this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.*;
+
+/**
+ * Writes instructions as Hack assembly text to an .asm file.
+ */
+public class AsmTextOutput implements AsmOutput {
+
+    private PrintWriter writer;
+    private int romAddress;
+    private int lineCount;
+
+    /**
+     * @param outPath the path to the .asm file.
+     */
+    public AsmTextOutput(String outPath) throws IOException {
+        this(new BufferedWriter(new FileWriter(new File(outPath))));
+    }
+
+    /**
+     * @param writer the writer to write the assembly text to.
+     */
+    public AsmTextOutput(Writer writer) {
+        this.writer = new PrintWriter(writer);
+    }
+
+    @Override
+    public void comment(String text) {
+        writer.println("// " + text);
+        lineCount++;
+    }
+
+    @Override
+    public void label(String symbol) {
+        writer.println("(" + symbol + ")");
+        lineCount++;
+    }
+
+    @Override
+    public void aInstruction(String symbol) {
+        writer.println("@" + symbol);
+        romAddress++;
+        lineCount++;
+    }
+
+    @Override
+    public void aInstruction(int value) {
+        writer.println("@" + value);
+        romAddress++;
+        lineCount++;
+    }
+
+    @Override
+    public void cInstruction(String instruction) {
+        writer.println(instruction);
+        romAddress++;
+        lineCount++;
+    }
+
+    @Override
+    public int romAddress() {
+        return romAddress;
+    }
+
+    @Override
+    public int outputLine() {
+        return lineCount + 1;
+    }
+
+    @Override
+    public void close() {
+        writer.flush();
+        writer.close();
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records, for each class in a directory, the hash of the source and options it was last compiled
+ * from, so that classes which have not changed since are not compiled again.
+ * <p>
+ * The Jack compiler does no linking: a class's .vm file depends only on its own .jack file, so
+ * a class is up to date when its hash matches and its output files still exist. The manifest is
+ * kept in the directory as a text file of lines "name TAB hash".
+ */
+public class BuildManifest {
+
+    public static final String FILE_NAME = ".jackc-manifest";
+
+    private static final String HEADER = "# JackCompiler build manifest";
+
+    private final Path path;
+    private final TreeMap<String, String> hashes;
+
+    private BuildManifest(Path path) {
+        this.path = path;
+        this.hashes = new TreeMap<String, String>();
+    }
+
+    /**
+     * Loads the manifest of a directory. A missing or unreadable manifest is treated as empty, so
+     * every class is compiled.
+     *
+     * @param directory the directory holding the .jack files.
+     * @return the manifest.
+     */
+    public static BuildManifest load(File directory) {
+        BuildManifest manifest = new BuildManifest(new File(directory, FILE_NAME).toPath());
+        if (!Files.isRegularFile(manifest.path)) {
+            return manifest;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manifest.path, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                return manifest;
+            }
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    manifest.hashes.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        } catch (IOException e) {
+            manifest.hashes.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * @param name the name of the .jack file.
+     * @param hash the hash of its source and the compiler options.
+     * @return whether the class was last compiled from the same source with the same options.
+     */
+    public synchronized boolean isUpToDate(String name, String hash) {
+        return hash.equals(hashes.get(name));
+    }
+
+    /**
+     * Records that a class has been compiled.
+     */
+    public synchronized void record(String name, String hash) {
+        hashes.put(name, hash);
+    }
+
+    /**
+     * Forgets a class, so that it is compiled next time. Called before a class is compiled, so a
+     * class that fails to compile is not taken to be up to date.
+     */
+    public synchronized void remove(String name) {
+        hashes.remove(name);
+    }
+
+    /**
+     * Writes the manifest, replacing the previous one in a single step.
+     *
+     * @throws IOException if the manifest cannot be written.
+     */
+    public synchronized void write() throws IOException {
+        Path temp = Files.createTempFile(path.getParent(), FILE_NAME, ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + "\n");
+            for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
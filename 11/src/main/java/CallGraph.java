@@ -0,0 +1,83 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The functions of a whole program and the calls each one makes, so that functions which can never
+ * be called can be left out of the output.
+ * <p>
+ * Jack has no way of calling a function other than by name, so every call a function can make is
+ * a call command in its VM code, and the graph is exact. Functions are added as their classes are
+ * compiled, which may be on several threads at once.
+ */
+public class CallGraph {
+
+    /**
+     * The functions the program starts from: Main.main, and Sys.init when the OS is part of it.
+     */
+    public static final List<String> ROOTS = List.of("Sys.init", "Main.main");
+
+    // The functions each function calls, by name.
+    private final Map<String, List<String>> calls = new HashMap<>();
+
+    /**
+     * Adds a function which makes no calls yet.
+     *
+     * @param name the function's full name, Class.name.
+     */
+    public synchronized void addFunction(String name) {
+        calls.computeIfAbsent(name, key -> new ArrayList<>());
+    }
+
+    /**
+     * Adds a call from one function to another, which need not be in the program.
+     *
+     * @param caller the function making the call.
+     * @param callee the function called.
+     */
+    public synchronized void addCall(String caller, String callee) {
+        calls.computeIfAbsent(caller, key -> new ArrayList<>()).add(callee);
+    }
+
+    /**
+     * @return the number of functions in the program.
+     */
+    public synchronized int size() {
+        return calls.size();
+    }
+
+    /**
+     * Finds every function of the program which can be called, directly or indirectly, from the
+     * roots. Calls to functions outside the program, such as those of a built-in OS, are ignored.
+     *
+     * @param roots the functions the program can start from. Those not in the program are ignored.
+     * @return the functions which can be reached.
+     * @throws IllegalStateException if none of the roots is in the program.
+     */
+    public synchronized Set<String> reachableFrom(Collection<String> roots) {
+        Set<String> reachable = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        for (String root : roots) {
+            if (calls.containsKey(root) && reachable.add(root)) {
+                pending.add(root);
+            }
+        }
+        if (reachable.isEmpty()) {
+            throw new IllegalStateException("The program has none of " + roots + " to start from");
+        }
+        while (!pending.isEmpty()) {
+            for (String callee : calls.get(pending.remove())) {
+                if (calls.containsKey(callee) && reachable.add(callee)) {
+                    pending.add(callee);
+                }
+            }
+        }
+        return reachable;
+    }
+}
@@ -0,0 +1,85 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiled classes kept in memory by the compile server, keyed by a hash of the options they were
+ * compiled with, the .jack file's name and its contents.
+ * <p>
+ * A class compiles to the same output whatever else is in the program, so an unchanged class is
+ * written out from the cache instead of being compiled again. The least recently used classes are
+ * dropped once the cache holds MAX_ENTRIES.
+ */
+public class ClassCache {
+
+    private static final int MAX_ENTRIES = 4096;
+
+    /**
+     * The output of compiling one class.
+     */
+    public static class Entry {
+        private final byte[] output;
+        private final byte[] lineMap;
+
+        /**
+         * @param output  the contents of the .vm or .vmb file.
+         * @param lineMap the contents of the line map, or null if none was written.
+         */
+        public Entry(byte[] output, byte[] lineMap) {
+            this.output = output;
+            this.lineMap = lineMap;
+        }
+
+        public byte[] getOutput() {
+            return output;
+        }
+
+        public byte[] getLineMap() {
+            return lineMap;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    public ClassCache() {
+        this.entries = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Computes the SHA-256 hash of some contents, with a prefix naming what they are.
+     *
+     * @param prefix   text hashed before the contents, such as the options and file name.
+     * @param contents the contents.
+     * @return the hash, as a hex string.
+     */
+    public static String hash(String prefix, byte[] contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((prefix + "\0").getBytes(StandardCharsets.UTF_8));
+        byte[] hash = digest.digest(contents);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+}
@@ -0,0 +1,700 @@
+
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.HashMap;
+
+
+/**
+ * Translates the VM commands into Assembly language.
+ */
+public class CodeWriter {
+
+    private AsmOutput out;
+    private HashMap<String, String> segmentMap;
+    private String currentFile;
+    private int jmpIdx;
+    private int callRtn;
+    private SymbolMap symbolMap;
+    private LineMap lineMap;
+    private String currentFunction;
+    // A comparison held back in case an if-goto follows it, and the not between them, if any.
+    private VMCommand pendingCompare;
+    private VMCommand pendingNot;
+
+    // Entries of local, argument, this and that up to these indexes are addressed by stepping A up
+    // from the base: cheaper than adding the index for a push up to 2, and for a pop up to 6.
+    private static final int MAX_PUSH_STEP_INDEX = 2;
+    private static final int MAX_POP_STEP_INDEX = 6;
+
+
+    /**
+     * Opens the output file/stream and gets ready
+     * to write into it.
+     *
+     * @param outPath the path to the output file.
+     */
+    public CodeWriter(String outPath) throws IOException {
+        this(new AsmTextOutput(outPath + ".asm"));
+    }
+
+    /**
+     * Gets ready to write into the given output, which may be an .asm file
+     * or the in-memory instruction list of the Hack backend.
+     *
+     * @param out the output to write instructions into.
+     */
+    public CodeWriter(AsmOutput out) {
+        this.out = out;
+        this.currentFunction = SymbolMap.NO_FUNCTION;
+        this.segmentMap = new HashMap<String, String>();
+        this.jmpIdx = 0;
+        this.callRtn = 0;
+        segmentMap.put("local", "LCL");
+        segmentMap.put("argument", "ARG");
+        segmentMap.put("this", "THIS");
+        segmentMap.put("that", "THAT");
+        segmentMap.put("pointer", "R3");
+        segmentMap.put("temp", "R5");
+    }
+
+    /**
+     * Informs the CodeWriter that the translation of a new VM file has started.
+     * Labels generated by the CodeWriter are numbered per file and prefixed with the file's name,
+     * so the code for a file does not depend on any other file and can be cached and relocated.
+     */
+    public void setFileName(String fileName) {
+        flushPending();
+        this.currentFile = fileName;
+        this.currentFunction = SymbolMap.NO_FUNCTION;
+        this.jmpIdx = 0;
+        this.callRtn = 0;
+    }
+
+    /**
+     * Scopes a label generated by the CodeWriter to the current file.
+     *
+     * @param label the label, unique within the current file.
+     * @return the label, unique within the program.
+     */
+    private String fileLabel(String label) {
+        String prefix = currentFile == null ? "bootstrap" : currentFile.replaceAll(".*/", "").replaceAll("\\.vm$", "");
+        return prefix + "$" + label;
+    }
+
+    /**
+     * Scopes a label from a label, goto or if-goto command to the function it appears in,
+     * as functionName$label.
+     *
+     * @param label the label, unique within the current function.
+     * @return the label, unique within the program.
+     */
+    private String functionLabel(String label) {
+        if (currentFunction.equals(SymbolMap.NO_FUNCTION)) {
+            return label;
+        }
+        return currentFunction + "$" + label;
+    }
+
+    /**
+     * Starts recording which VM command each generated ROM address belongs to.
+     *
+     * @param symbolMap the map to record into.
+     */
+    public void setSymbolMap(SymbolMap symbolMap) {
+        this.symbolMap = symbolMap;
+    }
+
+    /**
+     * Starts recording which .vm line each line of the output file was translated from.
+     *
+     * @param lineMap the map to record into.
+     */
+    public void setLineMap(LineMap lineMap) {
+        this.lineMap = lineMap;
+    }
+
+    /**
+     * Writes the assembly code that is the translation of the given parsed command.
+     * <p>
+     * An eq, lt or gt is held back until the next command: if it is an if-goto, optionally after a
+     * not, the three are translated together as one compare and jump.
+     *
+     * @param command the command to translate. File markers switch the current file.
+     * @throws InvalidParameterException if the command is not valid.
+     */
+    public void write(VMCommand command) {
+        if (command.isFileMarker()) {
+            setFileName(command.getFileName());
+            return;
+        }
+        if (pendingCompare != null) {
+            if (pendingNot == null && isArithmetic(command, "not")) {
+                pendingNot = command;
+                return;
+            }
+            if (command.getType() == Command.C_IF) {
+                writeCompareAndBranch(command);
+                return;
+            }
+            flushPending();
+        }
+        if (isArithmetic(command, "eq") || isArithmetic(command, "lt") || isArithmetic(command, "gt")) {
+            pendingCompare = command;
+            return;
+        }
+        translate(command);
+    }
+
+    private static boolean isArithmetic(VMCommand command, String name) {
+        return command.getType() == Command.C_ARITHMETIC && command.getArg1().equals(name);
+    }
+
+    /**
+     * Translates any comparison being held back as it is.
+     */
+    private void flushPending() {
+        if (pendingCompare == null) {
+            return;
+        }
+        VMCommand compare = pendingCompare;
+        VMCommand not = pendingNot;
+        pendingCompare = null;
+        pendingNot = null;
+        translate(compare);
+        if (not != null) {
+            translate(not);
+        }
+    }
+
+    /**
+     * Records where the code for a command starts, in the symbol and line maps.
+     */
+    private void record(VMCommand command) {
+        if (symbolMap != null) {
+            symbolMap.add(out.romAddress(), currentFunction, command.getFileName(), command.getLineNumber(), command.getType());
+        }
+        if (lineMap != null) {
+            lineMap.add(out.outputLine(), command.getFileName(), command.getLineNumber());
+        }
+    }
+
+    private void translate(VMCommand command) {
+        if (command.getType() == Command.C_FUNCTION) {
+            currentFunction = command.getArg1();
+        }
+        record(command);
+        switch (command.getType()) {
+            case C_ARITHMETIC:
+                writeArithmetic(command.getArg1());
+                break;
+            case C_PUSH:
+            case C_POP:
+                writePushPop(command.getType(), command.getArg1(), command.getArg2());
+                break;
+            case C_LABEL:
+                writeLabel(command.getArg1());
+                break;
+            case C_GOTO:
+                writeGoto(command.getArg1());
+                break;
+            case C_IF:
+                writeIfGoto(command.getArg1());
+                break;
+            case C_FUNCTION:
+                writeFunction(command.getArg1(), command.getArg2());
+                break;
+            case C_CALL:
+                writeCall(command.getArg1(), command.getArg2());
+                break;
+            case C_RETURN:
+                writeReturn();
+                break;
+            default:
+                throw new InvalidParameterException("Command " + command.getType() + " not valid");
+        }
+    }
+
+    /**
+     * Writes a comparison, optionally negated, and the if-goto which follows it as a single
+     * compare and jump. The comparison's true or false is never pushed: the difference of the two
+     * values is tested with the jump that matches the comparison.
+     *
+     * @param branch the if-goto command.
+     */
+    private void writeCompareAndBranch(VMCommand branch) {
+        String compare = pendingCompare.getArg1();
+        boolean negated = pendingNot != null;
+        record(pendingCompare);
+        pendingCompare = null;
+        pendingNot = null;
+        out.comment(compare + (negated ? " not" : "") + " if-goto " + branch.getArg1());
+        out.aInstruction("SP");
+        out.cInstruction("AM=M-1");
+        out.cInstruction("D=M");
+        out.aInstruction("SP");
+        out.cInstruction("AM=M-1");
+        out.cInstruction("D=M-D");
+        record(branch);
+        out.aInstruction(functionLabel(branch.getArg1()));
+        if (compare.equals("eq")) {
+            out.cInstruction(negated ? "D;JNE" : "D;JEQ");
+        } else if (compare.equals("lt")) {
+            out.cInstruction(negated ? "D;JGE" : "D;JLT");
+        } else {
+            out.cInstruction(negated ? "D;JLE" : "D;JGT");
+        }
+    }
+
+    /**
+     * Writes the bootstrap code that initialises the VM. Must be placed at beginning of .asm file.
+     * Sets stack pointer to 256, and calls Sys.init
+     */
+    public void writeInit() {
+        if (symbolMap != null) {
+            symbolMap.add(out.romAddress(), SymbolMap.NO_FUNCTION, "(bootstrap)", 0, Command.C_CALL);
+        }
+        out.comment("Initialisation...");
+        out.aInstruction(256);
+        out.cInstruction("D=A");
+        out.aInstruction("SP");
+        out.cInstruction("M=D");
+
+        writeCall("Sys.init", 0);
+    }
+
+    /**
+     * Writes the assembly code that is the
+     * translation of the given arithmetic command.
+     * <p>
+     * General algorithm for binary operations:
+     * 1. Pop top 2 values from stack.
+     * 2. Compute operation.
+     * 3. Push to stack.
+     * <p>
+     * General algorithm for unary operations:
+     * 1. Pop top value from stack.
+     * 2. Compute operation.
+     * 3. Push to stack.
+     *
+     * @param command the given arithmetic command.
+     */
+    public void writeArithmetic(String command) {
+        out.comment(command);
+        if (command.contains("add")) {
+            out.aInstruction("SP");
+            out.cInstruction("AM=M-1");
+            out.cInstruction("D=M");
+            out.cInstruction("A=A-1");
+            out.cInstruction("M=D+M");
+        } else if (command.contains("sub")) {
+            out.aInstruction("SP");
+            out.cInstruction("AM=M-1");
+            out.cInstruction("D=M");
+            out.cInstruction("A=A-1");
+            out.cInstruction("M=M-D");
+        } else if (command.contains("neg")) {
+            out.aInstruction("SP");
+            out.cInstruction("A=M-1");
+            out.cInstruction("M=-M");
+        } else if (command.contains("eq") || command.contains("lt") || command.contains("gt")) {
+            out.aInstruction("SP");
+            out.cInstruction("AM=M-1");
+            out.cInstruction("D=M");
+            out.cInstruction("A=A-1");
+            out.cInstruction("D=M-D");
+            if (command.contains("eq")) {
+                out.aInstruction(fileLabel("EQUAL_" + jmpIdx));
+                out.cInstruction("D;JEQ");
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=0");
+                out.aInstruction(fileLabel("PUSH_EQUAL" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("EQUAL_" + jmpIdx));
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=-1");
+                out.aInstruction(fileLabel("PUSH_EQUAL" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("PUSH_EQUAL" + jmpIdx));
+            } else if (command.contains("lt")) {
+                out.aInstruction(fileLabel("LESS_THAN_" + jmpIdx));
+                out.cInstruction("D;JLT");
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=0");
+                out.aInstruction(fileLabel("PUSH_LESS" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("LESS_THAN_" + jmpIdx));
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=-1");
+                out.aInstruction(fileLabel("PUSH_LESS" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("PUSH_LESS" + jmpIdx));
+            } else {
+                out.aInstruction(fileLabel("GREATER_THAN_" + jmpIdx));
+                out.cInstruction("D;JGT");
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=0");
+                out.aInstruction(fileLabel("PUSH_GREATER" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("GREATER_THAN_" + jmpIdx));
+                out.aInstruction("SP");
+                out.cInstruction("A=M-1");
+                out.cInstruction("M=-1");
+                out.aInstruction(fileLabel("PUSH_GREATER" + jmpIdx));
+                out.cInstruction("0;JMP");
+                out.label(fileLabel("PUSH_GREATER" + jmpIdx));
+            }
+            jmpIdx++;
+        } else if (command.contains("or") || command.contains("and")) {
+            out.aInstruction("SP");
+            out.cInstruction("AM=M-1");
+            out.cInstruction("D=M");
+            out.cInstruction("A=A-1");
+            if (command.contains("or")) {
+                out.cInstruction("M=D|M");
+            } else {
+                out.cInstruction("M=D&M");
+            }
+        } else if (command.contains("not")) {
+            out.aInstruction("SP");
+            out.cInstruction("A=M-1");
+            out.cInstruction("M=!M");
+        } else {
+            throw new InvalidParameterException("Command " + command + " not valid");
+        }
+    }
+
+    private void pushToStack() {
+        out.aInstruction("SP");
+        out.cInstruction("A=M");
+        out.cInstruction("M=D");
+        out.aInstruction("SP");
+        out.cInstruction("M=M+1");
+    }
+
+    private void popFromStack() {
+        out.aInstruction("R13");
+        out.cInstruction("M=D");
+        out.aInstruction("SP");
+        out.cInstruction("AM=M-1");
+        out.cInstruction("D=M");
+        out.aInstruction("R13");
+        out.cInstruction("A=M");
+        out.cInstruction("M=D");
+    }
+
+    /**
+     * Writes the assembly code that is the
+     * translation of the given command, where
+     * command is one of the two enumerated
+     * values: C_PUSH or C_POP.
+     * <p>
+     * Entries of local, argument, this and that at small indexes are addressed by stepping A up
+     * from the segment's base, and pop stores straight into them, rather than working out the
+     * address with the index and keeping it in R13. The temp, pointer and static segments are at
+     * fixed addresses, which are used directly.
+     *
+     * @param command the command type, either C_PUSH or C_POP.
+     * @param segment the memory segment to push to or pop from.
+     * @param index   the location within the segment.
+     * @throws IndexOutOfBoundsException if addressing pointer segment and index not in {0,1},
+     *                                   or if addressing temp segment and index not in 0-7
+     * @throws InvalidParameterException if segment name invalid, or command invalid.
+     */
+    public void writePushPop(Command command, String segment, int index) {
+        boolean localArgThisThat = segment.equals("local")
+                || segment.equals("argument")
+                || segment.equals("this")
+                || segment.equals("that");
+
+
+        if (command == Command.C_PUSH) {
+            out.comment("push " + segment + " " + index);
+            if (localArgThisThat) {
+                if (index <= MAX_PUSH_STEP_INDEX) {
+                    segmentEntry(segmentMap.get(segment), index);
+                } else {
+                    out.aInstruction(segmentMap.get(segment));
+                    out.cInstruction("D=M");
+                    out.aInstruction(index);
+                    out.cInstruction("A=D+A");
+                }
+                out.cInstruction("D=M");
+                pushToStack();
+            } else if (segment.equals("constant")) {
+                out.aInstruction(index);
+                out.cInstruction("D=A");
+                pushToStack();
+            } else {
+                fixedAddress(segment, index);
+                out.cInstruction("D=M");
+                pushToStack();
+            }
+        } else if (command == Command.C_POP) {
+            out.comment("pop " + segment + " " + index);
+            if (localArgThisThat && index > MAX_POP_STEP_INDEX) {
+                out.aInstruction(segmentMap.get(segment));
+                out.cInstruction("D=M");
+                out.aInstruction(index);
+                out.cInstruction("D=D+A");
+                popFromStack();
+            } else if (localArgThisThat) {
+                out.aInstruction("SP");
+                out.cInstruction("AM=M-1");
+                out.cInstruction("D=M");
+                segmentEntry(segmentMap.get(segment), index);
+                out.cInstruction("M=D");
+            } else {
+                out.aInstruction("SP");
+                out.cInstruction("AM=M-1");
+                out.cInstruction("D=M");
+                fixedAddress(segment, index);
+                out.cInstruction("M=D");
+            }
+        } else {
+            throw new InvalidParameterException("Command must be C_PUSH or C_POP only.");
+        }
+    }
+
+    /**
+     * Points A at an entry of a local, argument, this or that segment by stepping up from its base.
+     *
+     * @param base  the symbol holding the segment's base address.
+     * @param index the index of the entry.
+     */
+    private void segmentEntry(String base, int index) {
+        out.aInstruction(base);
+        if (index == 0) {
+            out.cInstruction("A=M");
+            return;
+        }
+        out.cInstruction("A=M+1");
+        for (int i = 1; i < index; i++) {
+            out.cInstruction("A=A+1");
+        }
+    }
+
+    /**
+     * Points A at an entry of the temp, pointer or static segment.
+     *
+     * @param segment the segment.
+     * @param index   the index of the entry.
+     * @throws IndexOutOfBoundsException if the index is outside the pointer or temp segment.
+     * @throws InvalidParameterException if the segment is not temp, pointer or static.
+     */
+    private void fixedAddress(String segment, int index) {
+        if (segment.equals("temp")) {
+            if (index < 0 || index > 7) {
+                throw new IndexOutOfBoundsException("Temp segment can only access index in 0-7");
+            }
+            out.aInstruction(5 + index);
+        } else if (segment.equals("pointer")) {
+            if (index == 0) {
+                out.aInstruction("THIS");
+            } else if (index == 1) {
+                out.aInstruction("THAT");
+            } else {
+                throw new IndexOutOfBoundsException("Pointer segment can only access index in {0, 1}");
+            }
+        } else if (segment.equals("static")) {
+            String fileName = currentFile.replaceAll(".*/", "");
+            out.aInstruction(fileName + "." + index);
+        } else {
+            throw new InvalidParameterException("Invalid segment name");
+        }
+    }
+
+    /**
+     * Writes the assembly code that is the translation of the label command.
+     *
+     * @param label the label to write.
+     */
+    public void writeLabel(String label) {
+        out.comment("label " + label);
+        out.label(functionLabel(label));
+    }
+
+
+    /**
+     * Writes the assembly code that is the translation of the goto command.
+     * Jumps to a given label.
+     *
+     * @param label the label to jump to.
+     */
+    public void writeGoto(String label) {
+        out.comment("goto " + label);
+        out.aInstruction(functionLabel(label));
+        out.cInstruction("0;JMP");
+    }
+
+    /**
+     * Writes the assembly code that is the translation of the if-goto command.
+     * Pops the top value off the stack, and jumps to label if value is not 0.
+     *
+     * @param label the label to jump to.
+     */
+    public void writeIfGoto(String label) {
+        out.comment("if-goto" + label);
+        out.aInstruction("SP");
+        out.cInstruction("AM=M-1");
+        out.cInstruction("D=M");
+        out.aInstruction(functionLabel(label));
+        out.cInstruction("D;JNE");
+
+    }
+
+
+    /**
+     * Writes the assembly code that is the translation of the call command.
+     * Pushes the return address, LCL, ARG, THIS and THAT, then sets ARG to SP-5-nArgs.
+     * Finally, sets LCL=SP and goes to the functionName, setting a label for the return address.
+     *
+     * @param functionName the name of the function to call
+     * @param nArgs        the number of arguments the function takes.
+     */
+    public void writeCall(String functionName, int nArgs) {
+        out.comment("call " + functionName + " " + nArgs);
+        out.aInstruction(fileLabel("returnaddr" + functionName + callRtn));
+        out.cInstruction("D=A");
+        pushToStack();
+        out.aInstruction("LCL");
+        out.cInstruction("D=M");
+        pushToStack();
+        out.aInstruction("ARG");
+        out.cInstruction("D=M");
+        pushToStack();
+        out.aInstruction("THIS");
+        out.cInstruction("D=M");
+        pushToStack();
+        out.aInstruction("THAT");
+        out.cInstruction("D=M");
+        pushToStack();
+        out.aInstruction(5);
+        out.cInstruction("D=A");
+        out.aInstruction(nArgs);
+        out.cInstruction("D=D+A");
+        out.aInstruction("SP");
+        out.cInstruction("D=M-D");
+        out.aInstruction("ARG");
+        out.cInstruction("M=D");
+        out.aInstruction("SP");
+        out.cInstruction("D=M");
+        out.aInstruction("LCL");
+        out.cInstruction("M=D");
+        out.aInstruction(functionName);
+        out.cInstruction("0;JMP");
+        out.label(fileLabel("returnaddr" + functionName + callRtn));
+        callRtn++;
+    }
+
+
+    /**
+     * Writes the assembly code that is the translation of the function command.
+     * Sets a label (Filename.functionName) and pushes 0 numLocals times to the stack.
+     *
+     * @param functionName the name of the function.
+     * @param numLocals    the number of local variables.
+     */
+    public void writeFunction(String functionName, int numLocals) {
+        currentFunction = functionName;
+        out.comment("function " + currentFile + "." + functionName + " " + numLocals);
+        out.label(functionName);
+        for (int i = 0; i < numLocals; i++) {
+            out.aInstruction(0);
+            out.cInstruction("D=A");
+            pushToStack();
+        }
+    }
+
+
+    /**
+     * Writes the assembly code that is the translation of the return command.
+     * Sets frame = local, return = *frame-5, *ARG = pop, SP = ARG+1, restores THIS, THAT, ARG, and LCL,
+     * then goes to return address in caller's code.
+     */
+    public void writeReturn() {
+        out.comment("return ");
+        // frame = LCL
+        out.aInstruction("LCL");
+        out.cInstruction("D=M");
+        out.aInstruction("frame");
+        out.cInstruction("M=D");
+
+        // ret = *(frame-5)
+        out.aInstruction(5);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("ret");
+        out.cInstruction("M=D");
+
+        // *ARG = pop()
+        out.aInstruction("SP");
+        out.cInstruction("A=M-1");
+        out.cInstruction("D=M");
+        out.aInstruction("ARG");
+        out.cInstruction("A=M");
+        out.cInstruction("M=D");
+
+        // SP = ARG + 1
+        out.aInstruction("ARG");
+        out.cInstruction("D=M+1");
+        out.aInstruction("SP");
+        out.cInstruction("M=D");
+
+        // THAT = *(frame-1)
+        out.aInstruction(1);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("THAT");
+        out.cInstruction("M=D");
+
+        // THIS = *(frame-2)
+        out.aInstruction(2);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("THIS");
+        out.cInstruction("M=D");
+
+        // ARG = *(frame-3)
+        out.aInstruction(3);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("ARG");
+        out.cInstruction("M=D");
+
+        // LCL = *(frame-4)
+        out.aInstruction(4);
+        out.cInstruction("D=A");
+        out.aInstruction("frame");
+        out.cInstruction("A=M-D");
+        out.cInstruction("D=M");
+        out.aInstruction("LCL");
+        out.cInstruction("M=D");
+
+        // goto ret
+        out.aInstruction("ret");
+        out.cInstruction("A=M");
+        out.cInstruction("0;JMP");
+    }
+
+    /**
+     * Closes the output file.
+     */
+    public void close() throws IOException {
+        flushPending();
+        out.close();
+    }
+}
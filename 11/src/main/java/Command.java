@@ -0,0 +1,6 @@
+/**
+ * Command represents the type of command that the VM Translator can handle.
+ */
+public enum Command {
+    C_ARITHMETIC, C_PUSH, C_POP, C_LABEL, C_GOTO, C_IF, C_FUNCTION, C_CALL, C_RETURN
+}
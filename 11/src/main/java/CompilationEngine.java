@@ -1,17 +1,43 @@
 import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 
 public class CompilationEngine {
 
 
     private String currentToken;
+    private byte currentType;
     private File inFile;
-    private JackTokeniser tokeniser;
+    private TokenBuffer tokens;
+    private int index;
     private SymbolTable table;
     private VMWriter writer;
     private String currentClass;
     private int labelCounter = 0;
+    private Log log;
+    // The static variable of each string constant, or null if string constants are not pooled.
+    private Map<String, Integer> pooledStrings;
+    // The array that pointer 1 points into within the current statement, and the variable added
+    // to its base, or null if it points at the base itself. thatArray is null when unknown.
+    private Expr.Variable thatArray;
+    private Expr.Variable thatIndex;
+    // What the look-ahead through the current subroutine's body found.
+    private boolean bodyUsesThis;
+    private boolean bodyCallsItself;
+    // The name a function or method calls itself by, and the label just after its entry which a
+    // call in tail position jumps back to, or null if it does not call itself.
+    private String tailCallName;
+    private String tailCallLabel;
+    private boolean tailCallVoid;
+    // The syntax errors found so far, as file:line: message, and whether the end of the file has
+    // been reported already.
+    private final List<String> errors = new ArrayList<>();
+    private boolean reportedEnd;
+    private boolean reportedFailure;
 
     // REGEX
 
@@ -21,6 +47,9 @@ public class CompilationEngine {
     private static final String TYPE_REGEX = "^(int|char|boolean)$";
     private static final String STATEMENT_BEGINNING_REGEX = "^(if|let|while|do|return)$";
 
+    // Constant factors up to this are multiplied with additions rather than Math.multiply.
+    private static final int MAX_ADD_CHAIN_FACTOR = 15;
+
     // METHODS
 
     /**
@@ -35,50 +64,256 @@ public class CompilationEngine {
      */
 
     public CompilationEngine(String inPath, String outPath) throws IOException {
+        this(inPath, outPath, false);
+    }
+
+    /**
+     * @param inPath   the path to the input file.
+     * @param outPath  the path to the output file.
+     * @param binaryVM whether to write the binary VM format instead of text.
+     * @throws IOException if input or output file cannot be found.
+     */
+    public CompilationEngine(String inPath, String outPath, boolean binaryVM) throws IOException {
+        this(inPath, new VMWriter(outPath, binaryVM));
+    }
+
+    /**
+     * @param inPath the path to the input file.
+     * @param writer the writer to write the VM commands to.
+     * @throws IOException if the input file cannot be found.
+     */
+    public CompilationEngine(String inPath, VMWriter writer) throws IOException {
         this.inFile = new File(inPath);
-        this.tokeniser = new JackTokeniser(inPath);
+        this.tokens = new TokenBuffer(new JackTokeniser(inPath));
+        this.index = -1;
         this.table = new SymbolTable();
-        this.writer = new VMWriter(outPath);
+        this.writer = writer;
         this.labelCounter = 0;
+        this.log = new Log(Log.Level.INFO, System.out);
+    }
+
+    /**
+     * Sets the log for this engine and its VMWriter. Each token is traced at TRACE level.
+     *
+     * @param log the log to print messages to.
+     */
+    public void setLog(Log log) {
+        this.log = log;
+        writer.setLog(log);
     }
 
     /**
      * Compiles a complete class. This will only be called once per file,
      * so advance scanner to first line that is not 'tokens'
+     * <p>
+     * A syntax error does not stop the compilation: it is recorded, the parser skips to the next
+     * statement or declaration, and carries on, so that every error in the class is found in one
+     * run. Once there is an error, nothing more is written and the output file is deleted.
+     *
+     * @throws Exception listing every error, with its file and line, if the class has any.
      */
 
     public void compileClass() throws Exception {
-        advance();
-        eat("class");
+        try {
+            advance();
+            eat("class");
 
-        // class name must be same as file name
-        String fileName = inFile.getName().replace(".jack", "");
-        String className = fileName.substring(0, 1).toUpperCase() + fileName.substring(1);
-        eat(className);
-        currentClass = className;
+            // class name must be same as file name
+            String fileName = inFile.getName().replace(".jack", "");
+            String className = fileName.substring(0, 1).toUpperCase() + fileName.substring(1);
+            eat(className);
+            currentClass = className;
 
-        // handle block
-        eat("{");
-        while (currentToken.matches(CLASSVARDEC_REGEX)) {
-            compileClassVarDec();
+            // handle block
+            eat("{");
+            boolean seenSubroutine = false;
+            while (!currentToken.equals("}") && currentType != TokenBuffer.NONE) {
+                int start = index;
+                try {
+                    if (currentToken.matches(CLASSVARDEC_REGEX)) {
+                        if (seenSubroutine) {
+                            throw new Exception("Class variables must be declared before subroutines: " + currentToken);
+                        }
+                        compileClassVarDec();
+                    } else if (currentToken.matches(SUBROUTINEDEC_REGEX)) {
+                        seenSubroutine = true;
+                        compileSubroutine();
+                    } else {
+                        throw new Exception("Expected a class variable or subroutine declaration instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
+                    }
+                } catch (Exception e) {
+                    reportError(e);
+                    skipDeclaration(start);
+                }
+            }
+            eat("}");
+        } catch (Exception e) {
+            if (!recordFailure(e)) {
+                reportError(e);
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new Exception(errors.size() + (errors.size() == 1 ? " error" : " errors") + " in "
+                    + inFile.getName() + ":\n" + String.join("\n", errors));
         }
+    }
 
-        while (currentToken.matches(SUBROUTINEDEC_REGEX)) {
-            compileSubroutine();
+    /**
+     * Records a syntax error at the current token and throws away the output. Once the file has
+     * ended too early, every construct still open would report that, so only the first is kept.
+     * <p>
+     * If the tokeniser has failed, nothing after the bad token can be parsed: its error, which
+     * already gives the position, is recorded as it is and thrown again, out of every construct
+     * still open, to stop parsing.
+     */
+
+    private void reportError(Exception e) throws Exception {
+        if (recordFailure(e)) {
+            throw tokens.getFailure();
         }
-        eat("}");
+        if (currentType == TokenBuffer.NONE) {
+            if (reportedEnd) {
+                return;
+            }
+            reportedEnd = true;
+        }
+        addError(inFile.getName() + ":" + tokens.line(index) + ": " + e.getMessage());
     }
 
-    private void advance() throws Exception {
-        do {
-            tokeniser.advance();
-            currentToken = tokeniser.getCurrentToken();
-            if (!tokeniser.hasMoreTokens()) {
+    /**
+     * Records the tokeniser's error, the first time the parser reaches it: when the error is thrown
+     * at the parser, or the parser has moved on to the token the tokeniser failed on. Looking ahead
+     * may find the error sooner, and the errors before it must still be reported.
+     *
+     * @param e the error the parser stopped at.
+     * @return whether the parser has reached the tokeniser's error.
+     */
+
+    private boolean recordFailure(Exception e) throws IOException {
+        Exception failure = tokens.getFailure();
+        if (failure == null || (e != failure && !tokens.isPastFailure(index))) {
+            return false;
+        }
+        if (!reportedFailure) {
+            reportedFailure = true;
+            addError(failure.getMessage());
+        }
+        return true;
+    }
+
+    private void addError(String message) throws IOException {
+        errors.add(message);
+        if (errors.size() == 1) {
+            writer.discard();
+        }
+    }
+
+    /**
+     * Skips the rest of a declaration which could not be compiled, up to the next declaration or
+     * the end of the class. Blocks in between are skipped whole.
+     *
+     * @param start the index of the token the declaration started at. The parser always moves past
+     *              it, so that it cannot get stuck.
+     */
+
+    private void skipDeclaration(int start) throws Exception {
+        if (index == start) {
+            advance();
+        }
+        while (currentType != TokenBuffer.NONE && !currentToken.equals("}")
+                && !currentToken.matches(CLASSVARDEC_REGEX) && !currentToken.matches(SUBROUTINEDEC_REGEX)) {
+            if (currentToken.equals("{")) {
+                int depth = 0;
+                do {
+                    if (currentToken.equals("{")) {
+                        depth++;
+                    } else if (currentToken.equals("}")) {
+                        depth--;
+                    }
+                    advance();
+                } while (depth > 0 && currentType != TokenBuffer.NONE);
+            } else {
+                advance();
+            }
+        }
+    }
+
+    /**
+     * Skips the rest of a statement which could not be compiled: past the next semicolon, or up to
+     * the next statement or the end of the enclosing block. The statements of any block in
+     * between are compiled, so errors inside it are still found.
+     *
+     * @param start the index of the token the statement started at. The parser always moves past
+     *              it, so that it cannot get stuck.
+     */
+
+    private void skipStatement(int start) throws Exception {
+        if (index == start) {
+            advance();
+        }
+        while (currentType != TokenBuffer.NONE && !currentToken.equals("}")
+                && !currentToken.matches(STATEMENT_BEGINNING_REGEX)) {
+            if (currentToken.equals(";")) {
+                advance();
                 return;
             }
+            if (currentToken.equals("{")) {
+                advance();
+                compileStatement();
+                eat("}");
+            } else {
+                advance();
+            }
+        }
+    }
+
+    /**
+     * Starts recording which line of the .jack file each VM command was compiled from.
+     *
+     * @param lineMap the map to record into.
+     */
+    public void setLineMap(LineMap lineMap) {
+        writer.setLineMap(lineMap, inFile.getName());
+    }
+
+    /**
+     * Optimises the VM code of each subroutine before it is written. See Optimiser.
+     */
+    public void setOptimise() {
+        writer.setOptimise();
+    }
+
+    /**
+     * Only writes the subroutines in the given set, by their full names, Class.name. See CallGraph.
+     */
+    public void setReachable(Set<String> reachable) {
+        writer.setReachable(reachable);
+    }
+
+    /**
+     * Pools string constants: each distinct constant in the class is built once, the first time
+     * it is evaluated, and the same String is pushed every time after that. Programs which change
+     * or dispose of a string constant must not be compiled this way.
+     */
+    public void setStringPool() {
+        pooledStrings = new HashMap<>();
+    }
+
+    /**
+     * Moves on to the next token in the buffer. Past the last token, the current token is ""
+     * and its type is NONE.
+     */
+    private void advance() throws Exception {
+        // Commands written from here on belong to the token being consumed.
+        if (currentToken != null) {
+            writer.setSourceLine(tokens.line(index));
+        }
+        index++;
+        currentType = tokens.type(index);
+        currentToken = tokens.text(index);
+        if (currentType != TokenBuffer.NONE && log.isEnabled(Log.Level.TRACE)) {
+            log.trace(currentToken);
         }
-        while (tokeniser.tokenType() == Token.WHITESPACE);
-        System.out.println(currentToken);
     }
 
     /**
@@ -93,16 +328,16 @@ public class CompilationEngine {
 
 
         // get type of current token & advance over.
-        if (!currentToken.matches(TYPE_REGEX) && tokeniser.tokenType() != Token.IDENTIFIER) {
-            throw new Exception("Expected a type or an identifier instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+        if (!currentToken.matches(TYPE_REGEX) && currentType != TokenBuffer.IDENTIFIER) {
+            throw new Exception("Expected a type or an identifier instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
         }
         String type = currentToken;
         advance();
 
 
         // get name of var declaration & create entry in symbol table, then advance to next token.
-        if (tokeniser.tokenType() != Token.IDENTIFIER) {
-            throw new Exception("Expected var name (identifier) instead of " + currentToken + ", which is of type: " + tokeniser.tokenType());
+        if (currentType != TokenBuffer.IDENTIFIER) {
+            throw new Exception("Expected var name (identifier) instead of " + currentToken + ", which is of type: " + tokens.tokenType(index));
         }
         table.define(currentToken, type, kind);
         advance();
@@ -114,8 +349,8 @@ public class CompilationEngine {
             advance();
 
             // expect varName
-            if (tokeniser.tokenType() != Token.IDENTIFIER) {
-                throw new Exception("Expected var name (identifier) instead of " + currentToken + ", which is of type: " + tokeniser.tokenType());
+            if (currentType != TokenBuffer.IDENTIFIER) {
+                throw new Exception("Expected var name (identifier) instead of " + currentToken + ", which is of type: " + tokens.tokenType(index));
             }
             table.define(currentToken, type, kind);
             advance();
@@ -136,21 +371,21 @@ public class CompilationEngine {
         // As we are starting a new subroutine scope, we can clear the subroutine scope of the current symbol table.
         table.startSubroutine();
         // record whether return type is void or a type
-        if (!currentToken.equals("void") && !currentToken.matches(TYPE_REGEX) && tokeniser.tokenType() != Token.IDENTIFIER) {
-            throw new Exception("Expected 'void' or type, instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+        if (!currentToken.equals("void") && !currentToken.matches(TYPE_REGEX) && currentType != TokenBuffer.IDENTIFIER) {
+            throw new Exception("Expected 'void' or type, instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
         }
         String returnType = currentToken;
         advance();
 
         // record subroutineName
-        if (tokeniser.tokenType() != Token.IDENTIFIER) {
-            throw new Exception("Expected subroutineName (identifier) instead of " + currentToken + ", which is of type: " + tokeniser.tokenType());
+        if (currentType != TokenBuffer.IDENTIFIER) {
+            throw new Exception("Expected subroutineName (identifier) instead of " + currentToken + ", which is of type: " + tokens.tokenType(index));
         }
         String subroutineName = currentToken;
         advance();
 
         // Before compiling the optional parameter list, we need to define 'this' as the first argument in the symboltable if the subroutine is a method.
-        if (subroutineName.equals("method")) {
+        if (subroutineType.equals("method")) {
             table.define("this", currentClass, Kind.ARG);
         }
 
@@ -163,28 +398,43 @@ public class CompilationEngine {
         eat("{");
         // compile optional varDecs
         while (currentToken.equals("var")) {
-            compileVarDec();
+            int start = index;
+            try {
+                compileVarDec();
+            } catch (Exception e) {
+                reportError(e);
+                skipStatement(start);
+            }
         }
 
         // compile function definition
         writer.writeFunction(currentClass + "." + subroutineName, table.varCount(Kind.VAR));
+        scanBody(subroutineName);
+
+        // A function or method which calls itself and then returns jumps back to here instead.
+        tailCallLabel = null;
+        if (bodyCallsItself && !subroutineType.equals("constructor")) {
+            tailCallName = currentClass + "." + subroutineName;
+            tailCallLabel = "TAIL_CALL" + labelCounter;
+            tailCallVoid = returnType.equals("void");
+            labelCounter++;
+            writer.writeLabel(tailCallLabel);
+        }
 
-        // If the subroutine is a method or a constructor, load 'this' pointer.
-        if (subroutineType.equals("method")) {
-            writer.writePush("argument", 0);
-            writer.writePop("pointer", 0);
+        // If the subroutine is a method or a constructor, load 'this' pointer. A method which never
+        // uses 'this' can leave the caller's in place.
+        if (subroutineType.equals("method") && bodyUsesThis) {
+            writer.writePush(Segment.ARGUMENT, 0);
+            writer.writePop(Segment.POINTER, 0);
         } else if (subroutineType.equals("constructor")) {
-            writer.writePush("constant", table.varCount(Kind.FIELD));
+            writer.writePush(Segment.CONSTANT, table.varCount(Kind.FIELD));
             writer.writeCall("Memory.alloc", 1);
-            writer.writePop("pointer", 0);
+            writer.writePop(Segment.POINTER, 0);
         }
 
         // compile statements until token is }, indicating end of method body.
-
-        while (!currentToken.equals("}")) {
-            compileStatement();
-        }
-        advance();
+        compileStatement();
+        eat("}");
     }
 
     /**
@@ -195,13 +445,13 @@ public class CompilationEngine {
     public void compileParameterList() throws Exception {
 
         // Parameter list may be optional, so check that we have a arg type.
-        if (currentToken.matches(TYPE_REGEX) || tokeniser.tokenType() == Token.IDENTIFIER) {
+        if (currentToken.matches(TYPE_REGEX) || currentType == TokenBuffer.IDENTIFIER) {
             String argType = currentToken;
             advance();
 
             // Get the varName, and define in local symbolTable
-            if (tokeniser.tokenType() != Token.IDENTIFIER) {
-                throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+            if (currentType != TokenBuffer.IDENTIFIER) {
+                throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
             }
             table.define(currentToken, argType, Kind.ARG);
             advance();
@@ -211,15 +461,15 @@ public class CompilationEngine {
                 advance();
 
                 // Get type
-                if (!currentToken.matches(TYPE_REGEX) && tokeniser.tokenType() != Token.IDENTIFIER) {
-                    throw new Exception("Expected type, instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+                if (!currentToken.matches(TYPE_REGEX) && currentType != TokenBuffer.IDENTIFIER) {
+                    throw new Exception("Expected type, instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
                 }
                 argType = currentToken;
                 advance();
 
                 // use the current token to define the parameter in the current scope's symbol table.
-                if (tokeniser.tokenType() != Token.IDENTIFIER) {
-                    throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+                if (currentType != TokenBuffer.IDENTIFIER) {
+                    throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
                 }
                 table.define(currentToken, argType, Kind.ARG);
                 advance();
@@ -227,6 +477,67 @@ public class CompilationEngine {
         }
     }
 
+    /**
+     * Looks ahead through the body of a subroutine, from the current token to its closing brace.
+     * Sets bodyUsesThis if it uses 'this': the keyword itself, a field which is not hidden by a
+     * local or parameter, or a call to a method of this object. Sets bodyCallsItself if a do or
+     * return statement starts with a call to the subroutine by its own name.
+     *
+     * @param subroutineName the name of the subroutine.
+     */
+
+    private void scanBody(String subroutineName) throws Exception {
+        bodyUsesThis = false;
+        bodyCallsItself = false;
+        tokens.pin(index);
+        try {
+            int depth = 1;
+            for (int i = index; depth > 0; i++) {
+                byte type = tokens.type(i);
+                String text = tokens.text(i);
+                if (type == TokenBuffer.NONE) {
+                    // The body is not closed, which the parser will report.
+                    bodyUsesThis = true;
+                    return;
+                } else if (type == TokenBuffer.SYMBOL) {
+                    if (text.equals("{")) {
+                        depth++;
+                    } else if (text.equals("}")) {
+                        depth--;
+                    }
+                } else if (type == TokenBuffer.KEYWORD) {
+                    if (text.equals("this")) {
+                        bodyUsesThis = true;
+                    }
+                } else if (type == TokenBuffer.IDENTIFIER) {
+                    boolean qualified = tokens.text(i - 1).equals(".");
+                    if (tokens.text(i + 1).equals("(") && !qualified) {
+                        bodyUsesThis = true;
+                    }
+                    Symbol symbol = table.lookup(text);
+                    if (symbol != null && symbol.getKind() == Kind.FIELD) {
+                        bodyUsesThis = true;
+                    }
+                    if (text.equals(subroutineName) && tokens.text(i + 1).equals("(")) {
+                        int start = qualified && tokens.text(i - 2).equals(currentClass) ? i - 3 : i - 1;
+                        String statement = tokens.text(start);
+                        if (statement.equals("do") || statement.equals("return")) {
+                            bodyCallsItself = true;
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (e != tokens.getFailure()) {
+                throw e;
+            }
+            // The tokeniser stopped inside the body, which the parser will report when it gets there.
+            bodyUsesThis = true;
+        } finally {
+            tokens.unpin();
+        }
+    }
+
     /**
      * compiles a var declaration.
      */
@@ -236,16 +547,16 @@ public class CompilationEngine {
         advance();
 
         // Get type
-        if (!currentToken.matches(TYPE_REGEX) && tokeniser.tokenType() != Token.IDENTIFIER) {
-            throw new Exception("Expected type, instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+        if (!currentToken.matches(TYPE_REGEX) && currentType != TokenBuffer.IDENTIFIER) {
+            throw new Exception("Expected type, instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
         }
         String varType = currentToken;
         advance();
 
 
         // Get the varName, and define in local symbolTable
-        if (tokeniser.tokenType() != Token.IDENTIFIER) {
-            throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+        if (currentType != TokenBuffer.IDENTIFIER) {
+            throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
         }
         table.define(currentToken, varType, Kind.VAR);
         advance();
@@ -257,8 +568,8 @@ public class CompilationEngine {
             advance();
 
             // Get the varName, and define in local symbolTable
-            if (tokeniser.tokenType() != Token.IDENTIFIER) {
-                throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+            if (currentType != TokenBuffer.IDENTIFIER) {
+                throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
             }
             table.define(currentToken, varType, Kind.VAR);
             advance();
@@ -270,27 +581,39 @@ public class CompilationEngine {
 
     /**
      * Compiles a sequence of statements, not
-     * including the enclosing “{}”.
+     * including the enclosing “{}”. Stops at the
+     * closing “}”, or at the end of the file.
+     * A statement with a syntax error is reported
+     * and skipped.
      */
 
     public void compileStatement() throws Exception {
-        while (currentToken.matches(STATEMENT_BEGINNING_REGEX)) {
-            switch (currentToken) {
-                case "if":
-                    compileIf();
-                    break;
-                case "let":
-                    compileLet();
-                    break;
-                case "while":
-                    compileWhile();
-                    break;
-                case "do":
-                    compileDo();
-                    break;
-                case "return":
-                    compileReturn();
-                    break;
+        while (!currentToken.equals("}") && currentType != TokenBuffer.NONE) {
+            thatArray = null;
+            int start = index;
+            try {
+                switch (currentToken) {
+                    case "if":
+                        compileIf();
+                        break;
+                    case "let":
+                        compileLet();
+                        break;
+                    case "while":
+                        compileWhile();
+                        break;
+                    case "do":
+                        compileDo();
+                        break;
+                    case "return":
+                        compileReturn();
+                        break;
+                    default:
+                        throw new Exception("Expected a statement instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
+                }
+            } catch (Exception e) {
+                reportError(e);
+                skipStatement(start);
             }
         }
     }
@@ -305,56 +628,26 @@ public class CompilationEngine {
 
         // Subroutine call
 
-        int numArgs = 0;
-
         // Subroutine name
-        if (tokeniser.tokenType() != Token.IDENTIFIER) {
-            throw new Exception("Expected a subroutine name or object name (identifier) instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+        if (currentType != TokenBuffer.IDENTIFIER) {
+            throw new Exception("Expected a subroutine name or object name (identifier) instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
         }
 
         // Here, name can be either the name of a subroutine, or it can be an object.
         String functionName = currentToken;
+        int line = tokens.line(index);
         advance();
+        Expr call = parseSubroutineCall(functionName, line);
 
-        if (currentToken.equals("(")) {
-            String subroutineName = functionName;
-            String name = currentClass + "." + subroutineName;
-            numArgs++;
-            writer.writePush("pointer", 0);
-            eat("(");
-            numArgs += compileExpressionList();
-            eat(")");
-            writer.writeCall(name, numArgs);
-
-        } else if (currentToken.equals(".")) {
+        eat(";");
+        if (tailCallVoid && currentToken.equals("return") && tokens.text(index + 1).equals(";") && compileTailCall(call)) {
+            // The return after the call is never reached, so it is not compiled.
             advance();
-            String subroutineName = currentToken;
-            String type = table.typeOf(functionName);
-            if (!type.equals("none")) {
-                Kind kind = table.kindOf(functionName);
-                int index = table.indexOf(functionName);
-                writer.writePush(Kind.kindToSegment(kind), index - 1);
-                numArgs++;
-                String name = type + "." + subroutineName;
-                advance();
-                eat("(");
-                numArgs += compileExpressionList();
-                eat(")");
-                writer.writeCall(name, numArgs);
-            } else {
-                String name = functionName + "." + subroutineName;
-                advance();
-                eat("(");
-                numArgs += compileExpressionList();
-                eat(")");
-                writer.writeCall(name, numArgs);
-            }
-        } else {
-            throw new Exception("Expected subroutine call");
+            advance();
+            return;
         }
-
-        eat(";");
-        writer.writePop("temp", 0);
+        emit(call);
+        writer.writePop(Segment.TEMP, 0);
     }
 
 
@@ -366,35 +659,44 @@ public class CompilationEngine {
         eat("let");
 
         // Get the varName
-        if (tokeniser.tokenType() != Token.IDENTIFIER) {
-            throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokeniser.tokenType());
+        if (currentType != TokenBuffer.IDENTIFIER) {
+            throw new Exception("Expected a varName (identifier) instead of: " + currentToken + ", which is of type: " + tokens.tokenType(index));
         }
-        String varName = currentToken;
+        Expr.Variable variable = variable(currentToken, tokens.line(index));
         advance();
 
         // If there is an array declaration
-        boolean arrDec = false;
+        Expr arrayIndex = null;
         if (currentToken.equals("[")) {
-            arrDec = true;
             advance();
-            writer.writePush(Kind.kindToSegment(table.kindOf(varName)), table.indexOf(varName) - 1);
-            compileExpression();
+            arrayIndex = parseExpression();
             eat("]");
-            writer.writeArithmetic("add");
         }
 
         eat("=");
-        compileExpression();
+        Expr value = parseExpression();
         eat(";");
 
-        // If there was an array declaration, generate array access code, otherwise directly pop the value from the stack:
-        if (arrDec) {
-            writer.writePop("temp", 0);
-            writer.writePop("pointer", 1);
-            writer.writePush("temp", 0);
-            writer.writePop("that", 0);
+        if (arrayIndex == null) {
+            emit(value);
+            writer.writePop(variable.segment, variable.index);
+        } else if (arrayIndex.isPure() && (value.isPure() || (isStable(variable) && isStable(arrayIndex)))) {
+            // The element's address can be worked out after the value without changing the result,
+            // so pointer 1 is set then and the value popped straight into the element.
+            emit(value);
+            int offset = pointThat(new Expr.ArrayElement(variable, arrayIndex, variable.line));
+            writer.writePop(Segment.THAT, offset);
         } else {
-            writer.writePop(Kind.kindToSegment(table.kindOf(varName)), table.indexOf(varName) - 1);
+            // Work out the element's address first, and keep the value in temp 0 while pointer 1 is set.
+            emit(variable);
+            emit(arrayIndex);
+            writer.writeArithmetic(ArithmeticCommand.ADD);
+            emit(value);
+            writer.writePop(Segment.TEMP, 0);
+            writer.writePop(Segment.POINTER, 1);
+            writer.writePush(Segment.TEMP, 0);
+            writer.writePop(Segment.THAT, 0);
+            thatArray = null;
         }
     }
 
@@ -404,29 +706,25 @@ public class CompilationEngine {
 
     public void compileWhile() throws Exception {
         // Declare labels
-        String labelEnd = "WHILE_END" + labelCounter;
+        String labelTest = "WHILE_TEST" + labelCounter;
         String labelLoop = "WHILE" + labelCounter;
         labelCounter++;
 
         // advance over while, as this will only be called if token is while.
         advance();
 
-        writer.writeLabel(labelLoop);
-        // Condition
+        // The condition is tested at the bottom of the loop, so each time round takes one jump.
         eat("(");
-        compileExpression();
-        writer.writeArithmetic("not");
+        Expr condition = parseExpression();
         eat(")");
         eat("{");
-        writer.writeIf(labelEnd);
+        writer.writeGoto(labelTest);
+        writer.writeLabel(labelLoop);
 
-        while (!currentToken.equals("}")) {
-            compileStatement();
-        }
-        // Always loop back to top and re-evaluate condition.
-        writer.writeGoto(labelLoop);
-        // Broken out of the loop.
-        writer.writeLabel(labelEnd);
+        compileStatement();
+        writer.writeLabel(labelTest);
+        thatArray = null;
+        compileBranch(condition, true, labelLoop);
         eat("}");
     }
 
@@ -439,36 +737,95 @@ public class CompilationEngine {
     public void compileIf() throws Exception {
         // Declare labels
         String labelFalse = "IF_FALSE" + labelCounter;
-        String labelTrue = "IF_TRUE" + labelCounter;
         String labelEnd = "IF_END" + labelCounter;
         labelCounter++;
 
         eat("if");
         eat("(");
-        compileExpression();
+        compileBranch(parseExpression(), false, labelFalse);
         eat(")");
         eat("{");
 
-        writer.writeIf(labelTrue);
-        writer.writeGoto(labelFalse);
-        writer.writeLabel(labelTrue);
-        while (!currentToken.equals("}")) {
-            compileStatement();
-        }
-        writer.writeGoto(labelEnd);
+        compileStatement();
         eat("}");
-        writer.writeLabel(labelFalse);
 
         if (currentToken.equals("else")) {
+            writer.writeGoto(labelEnd);
+            writer.writeLabel(labelFalse);
             eat("else");
             eat("{");
 
-            while (!currentToken.equals("}")) {
-                compileStatement();
-            }
+            compileStatement();
             eat("}");
+            writer.writeLabel(labelEnd);
+        } else {
+            writer.writeLabel(labelFalse);
+        }
+    }
+
+    /**
+     * Writes a jump to a label, taken when a condition is true (not 0) or when it is false (0).
+     * <p>
+     * A constant condition becomes a goto, or nothing. A comparison under ~ is tested the other way
+     * round rather than inverted first. Otherwise a jump when false is written as not, if-goto for a
+     * condition which can only be true or false, and as a test for equality with 0 for any other
+     * value. The translator turns a comparison followed by an if-goto, with or without a not
+     * between them, into a single compare and jump.
+     *
+     * @param condition the condition.
+     * @param whenTrue  whether to jump when the condition is true, rather than when it is false.
+     * @param label     the label to jump to.
+     */
+    private void compileBranch(Expr condition, boolean whenTrue, String label) throws Exception {
+        while (condition instanceof Expr.Unary && ((Expr.Unary) condition).operator == ArithmeticCommand.NOT
+                && isComparison(((Expr.Unary) condition).operand)) {
+            condition = ((Expr.Unary) condition).operand;
+            whenTrue = !whenTrue;
+        }
+        if (condition instanceof Expr.Constant) {
+            if ((((Expr.Constant) condition).value != 0) == whenTrue) {
+                writer.writeGoto(label);
+            }
+            return;
+        }
+        emit(condition);
+        if (!whenTrue && isBoolean(condition)) {
+            writer.writeArithmetic(ArithmeticCommand.NOT);
+        } else if (!whenTrue) {
+            writer.writePush(Segment.CONSTANT, 0);
+            writer.writeArithmetic(ArithmeticCommand.EQ);
+        }
+        writer.writeIf(label);
+    }
+
+    /**
+     * @return whether the expression's value can only be true (-1) or false (0).
+     */
+    private static boolean isBoolean(Expr expression) {
+        if (isComparison(expression)) {
+            return true;
+        }
+        if (expression instanceof Expr.Constant) {
+            int value = ((Expr.Constant) expression).value;
+            return value == 0 || value == -1;
+        }
+        if (expression instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expression;
+            return unary.operator == ArithmeticCommand.NOT && isBoolean(unary.operand);
+        }
+        if (expression instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expression;
+            return (binary.operator == '&' || binary.operator == '|') && isBoolean(binary.left) && isBoolean(binary.right);
         }
-        writer.writeLabel(labelEnd);
+        return false;
+    }
+
+    private static boolean isComparison(Expr expression) {
+        if (!(expression instanceof Expr.Binary)) {
+            return false;
+        }
+        char operator = ((Expr.Binary) expression).operator;
+        return operator == '<' || operator == '>' || operator == '=';
     }
 
     /**
@@ -481,75 +838,87 @@ public class CompilationEngine {
 
         // Check for an expression. If there is no expression, push 0 to the stack.
         if (currentToken.equals(";")) {
-            writer.writePush("constant", 0);
+            writer.writePush(Segment.CONSTANT, 0);
         } else {
-            compileExpression();
+            Expr value = parseExpression();
+            if (compileTailCall(value)) {
+                eat(";");
+                return;
+            }
+            emit(value);
         }
         eat(";");
         writer.writeReturn();
     }
 
+    /**
+     * Compiles a call whose result is returned straight away, if it is a call of the subroutine
+     * being compiled, as a jump back to the subroutine's start. The new arguments are all worked
+     * out first and then popped into the subroutine's own arguments, skipping any which are passed
+     * on unchanged, and the locals are set back to 0 as they are on entry. The stack does not grow.
+     * <p>
+     * When the arguments are permuted, as in f(n - 1, b, a), an argument is popped while a value
+     * loaded from it is still on the stack below. That is valid VM code, and the Optimiser judges
+     * each pop by the value as it was loaded, so it is optimised correctly.
+     *
+     * @param expression the expression being returned.
+     * @return whether the expression was such a call, and has been compiled.
+     */
+
+    private boolean compileTailCall(Expr expression) throws Exception {
+        if (tailCallLabel == null || !(expression instanceof Expr.Call)) {
+            return false;
+        }
+        Expr.Call call = (Expr.Call) expression;
+        if (!call.name.equals(tailCallName) || call.arguments.size() != table.varCount(Kind.ARG)) {
+            return false;
+        }
+        writer.setSourceLine(call.line);
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < call.arguments.size(); i++) {
+            Expr argument = call.arguments.get(i);
+            if (!(argument instanceof Expr.Variable && ((Expr.Variable) argument).segment == Segment.ARGUMENT
+                    && ((Expr.Variable) argument).index == i)) {
+                emit(argument);
+                changed.add(i);
+            }
+        }
+        for (int i = changed.size() - 1; i >= 0; i--) {
+            writer.writePop(Segment.ARGUMENT, changed.get(i));
+        }
+        for (int i = 0; i < table.varCount(Kind.VAR); i++) {
+            writer.writePush(Segment.CONSTANT, 0);
+            writer.writePop(Segment.LOCAL, i);
+        }
+        writer.writeGoto(tailCallLabel);
+        return true;
+    }
+
     /**
      * Compiles an expression - form is term (op term)*
      */
 
     public void compileExpression() throws Exception {
-        compileTerm();
-        while ((currentToken.matches(BINARY_OPERATORS))) {
-            switch (currentToken) {
-                case "+":
-                    advance();
-                    compileTerm();
-                    writer.writeArithmetic("add");
-                    break;
-                case "*":
-                    advance();
-                    compileTerm();
-                    writer.writeCall("Math.multiply", 2);
-                    break;
-                case "/":
-                    advance();
-                    compileTerm();
-                    writer.writeCall("Math.divide", 2);
-                    break;
-                case "-":
-                    advance();
-                    compileTerm();
-                    writer.writeArithmetic("sub");
-                    break;
-                case "<":
-                    advance();
-                    compileTerm();
-                    writer.writeArithmetic("lt");
-                    break;
-                case ">":
-                    advance();
-                    compileTerm();
-                    writer.writeArithmetic("gt");
-                    break;
-                case "=":
-                    advance();
-                    compileTerm();
-                    writer.writeArithmetic("eq");
-                    break;
-                case "&":
-                    advance();
-                    compileTerm();
-                    writer.writeArithmetic("and");
-                    break;
-                case "|":
-                    advance();
-                    compileTerm();
-                    writer.writeArithmetic("or");
-                    break;
-                default:
-                    throw new Exception("Operator: " + currentToken + " is not a binary operator");
-            }
+        emit(parseExpression());
+    }
+
+    /**
+     * Parses an expression into an Expr, simplifying it as it is built. No code is written.
+     */
+
+    private Expr parseExpression() throws Exception {
+        Expr expression = parseTerm();
+        while (currentType == TokenBuffer.SYMBOL && currentToken.matches(BINARY_OPERATORS)) {
+            char operator = currentToken.charAt(0);
+            int line = tokens.line(index);
+            advance();
+            expression = Expr.binary(operator, expression, parseTerm(), line);
         }
+        return expression;
     }
 
     /**
-     * Compiles a term. This method is faced
+     * Parses a term. This method is faced
      * with a slight difficulty when trying to
      * decide between some of the alternative
      * rules. Specifically, if the current token
@@ -565,135 +934,373 @@ public class CompilationEngine {
      * advanced over.
      */
 
-    public void compileTerm() throws Exception {
-        // Lookahead
-        if (tokeniser.tokenType() == Token.IDENTIFIER) {
-            String temp = currentToken;
+    private Expr parseTerm() throws Exception {
+        int line = tokens.line(index);
+        if (currentType == TokenBuffer.IDENTIFIER) {
+            String name = currentToken;
             advance();
             if (currentToken.equals("[")) {
-                // In the case of an array, we need to push the base address and the array variable on to the stack.
-                writer.writePush(Kind.kindToSegment(table.kindOf(temp)), table.indexOf(temp) - 1);
+                Expr.Variable array = variable(name, line);
                 eat("[");
-                compileExpression();
+                Expr arrayIndex = parseExpression();
                 eat("]");
-                // Add the base address, pop into 'that' pointer, then push the pointer to stack.
-                writer.writeArithmetic("add");
-                writer.writePop("pointer", 1);
-                writer.writePush("that", 0);
-
+                return new Expr.ArrayElement(array, arrayIndex, line);
             } else if (currentToken.equals(".") || currentToken.equals("(")) {
-                int numArgs = 0;
-                // Here, name can be either the name of a subroutine, or it can be an object.
-                String functionName = temp;
-                if (currentToken.equals("(")) {
-                    String subroutineName = functionName;
-                    String name = currentClass + "." + subroutineName;
-                    numArgs++;
-                    writer.writePush("pointer", 0);
-                    eat("(");
-                    numArgs += compileExpressionList();
-                    eat(")");
-                    writer.writeCall(name, numArgs);
-                } else {
-                    advance();
-                    String subroutineName = currentToken;
-                    String type = table.typeOf(functionName);
-
-                    if (!type.equals("none")) {
-                        Kind kind = table.kindOf(functionName);
-                        int index = table.indexOf(functionName);
-                        writer.writePush(Kind.kindToSegment(kind), index - 1);
-                        numArgs++;
-                        String name = type + "." + subroutineName;
-                        advance();
-                        eat("(");
-                        numArgs += compileExpressionList();
-                        eat(")");
-                        writer.writeCall(name, numArgs);
-                    } else {
-                        String name = functionName + "." + subroutineName;
-                        advance();
-                        eat("(");
-                        numArgs += compileExpressionList();
-                        eat(")");
-                        writer.writeCall(name, numArgs);
-                    }
-                }
+                return parseSubroutineCall(name, line);
             } else {
-                // It's a var name so push it to the stack.
-                writer.writePush(Kind.kindToSegment(table.kindOf(temp)), table.indexOf(temp) - 1);
+                return variable(name, line);
             }
-        } else if (tokeniser.tokenType() == Token.INT_CONST) {
-            writer.writePush("constant", tokeniser.intVal());
+        } else if (currentType == TokenBuffer.INT_CONST) {
+            Expr constant = new Expr.Constant(tokens.intValue(index), line);
             advance();
-        } else if (tokeniser.tokenType() == Token.STRING_CONST) {
-            // Build the each character.
-            String stringToPush = tokeniser.stringVal();
-            System.out.println("Pushing " + stringToPush);
-            writer.writePush("constant", stringToPush.length());
-            writer.writeCall("String.new", 1);
-            for (int i = 0; i < stringToPush.length(); i++) {
-                if (stringToPush.charAt(i) == '"'){
-                    continue;
-                }
-                writer.writePush("constant", (int) stringToPush.charAt(i));
-                writer.writeCall("String.appendChar", 2);
-            }
+            return constant;
+        } else if (currentType == TokenBuffer.STRING_CONST) {
+            Expr string = new Expr.StringConstant(tokens.stringValue(index), line);
             advance();
-        } else if (tokeniser.tokenType() == Token.KEYWORD && tokeniser.keyWord().equals("true")) {
-            writer.writePush("constant", 0);
-            writer.writeArithmetic("not");
+            return string;
+        } else if (currentType == TokenBuffer.KEYWORD && currentToken.equals("true")) {
             advance();
-        } else if (tokeniser.tokenType() == Token.KEYWORD && (tokeniser.keyWord().equals("false") || tokeniser.keyWord().equals("null"))) {
-            writer.writePush("constant", 0);
+            return new Expr.Constant(-1, line);
+        } else if (currentType == TokenBuffer.KEYWORD && (currentToken.equals("false") || currentToken.equals("null"))) {
             advance();
-        } else if (tokeniser.tokenType() == Token.KEYWORD && tokeniser.keyWord().equals("this")) {
-            writer.writePush("pointer", 0);
+            return new Expr.Constant(0, line);
+        } else if (currentType == TokenBuffer.KEYWORD && currentToken.equals("this")) {
             advance();
-        } else if (tokeniser.tokenType() == Token.SYMBOL && tokeniser.getSym().equals("(")) {
+            return new Expr.Variable(Segment.POINTER, 0, line);
+        } else if (currentType == TokenBuffer.SYMBOL && currentToken.equals("(")) {
             advance();
-            compileExpression();
+            Expr expression = parseExpression();
             eat(")");
-        } else if (tokeniser.tokenType() == Token.SYMBOL && (tokeniser.getSym().equals("-") || tokeniser.getSym().equals("~"))) {
-            String symbol = currentToken;
+            return expression;
+        } else if (currentType == TokenBuffer.SYMBOL && (currentToken.equals("-") || currentToken.equals("~"))) {
+            ArithmeticCommand operator = currentToken.equals("-") ? ArithmeticCommand.NEG : ArithmeticCommand.NOT;
             advance();
-            compileTerm();
-            if (symbol.equals("-")) {
-                writer.writeArithmetic("neg");
-            } else {
-                writer.writeArithmetic("not");
-            }
+            return Expr.unary(operator, parseTerm(), line);
         } else {
             throw new Exception(currentToken + " Not valid syntax for term");
         }
     }
 
+    private Expr.Variable variable(String name, int line) {
+        return variable(table.lookup(name), line);
+    }
+
+    private static Expr.Variable variable(Symbol symbol, int line) {
+        if (symbol == null) {
+            return new Expr.Variable(Segment.NONE, -1, line);
+        }
+        return new Expr.Variable(symbol.getSegment(), symbol.getIndex() - 1, line);
+    }
 
     /**
-     * Compiles a (possibly empty) comma separated list of expressions.
+     * Parses a subroutine call, once its first name has been advanced over.
+     * The current token must be "(" or ".".
      *
-     * @return the number of arguments.
+     * @param firstName the subroutine name, or the object or class name before the ".".
+     * @param line      the line the call starts on.
      */
 
-    public int compileExpressionList() throws Exception {
-        int numArgs = 0;
-        // If there are no expressions, return 0 arguments.
+    private Expr parseSubroutineCall(String firstName, int line) throws Exception {
+        List<Expr> arguments = new ArrayList<>();
+        String name;
+        if (currentToken.equals("(")) {
+            // A method of this object.
+            name = currentClass + "." + firstName;
+            arguments.add(new Expr.Variable(Segment.POINTER, 0, line));
+        } else if (currentToken.equals(".")) {
+            advance();
+            String subroutineName = currentToken;
+            Symbol object = table.lookup(firstName);
+            if (object != null) {
+                // A method of the object held in a variable.
+                name = object.getType() + "." + subroutineName;
+                arguments.add(variable(object, line));
+            } else {
+                name = firstName + "." + subroutineName;
+            }
+            advance();
+        } else {
+            throw new Exception("Expected subroutine call");
+        }
+        eat("(");
+        parseExpressionList(arguments);
+        eat(")");
+        return new Expr.Call(name, arguments, line);
+    }
+
+    /**
+     * Parses a (possibly empty) comma separated list of expressions.
+     *
+     * @param expressions the list to add the expressions to.
+     */
+
+    private void parseExpressionList(List<Expr> expressions) throws Exception {
+        // If there are no expressions, there is nothing to add.
         if (currentToken.equals(")")) {
-            return numArgs;
+            return;
+        }
+        expressions.add(parseExpression());
+        while (currentToken.equals(",")) {
+            advance();
+            expressions.add(parseExpression());
+        }
+    }
+
+    /**
+     * Writes the code which pushes the value of an expression.
+     */
+
+    private void emit(Expr expression) throws Exception {
+        writer.setSourceLine(expression.line);
+        if (expression instanceof Expr.Constant) {
+            writer.writeConstant(((Expr.Constant) expression).value);
+        } else if (expression instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expression;
+            writer.writePush(variable.segment, variable.index);
+        } else if (expression instanceof Expr.StringConstant) {
+            String stringToPush = ((Expr.StringConstant) expression).value;
+            if (log.isEnabled(Log.Level.DEBUG)) {
+                log.debug("Pushing " + stringToPush);
+            }
+            if (pooledStrings != null) {
+                emitPooledString(stringToPush);
+            } else {
+                emitNewString(stringToPush);
+            }
+        } else if (expression instanceof Expr.ArrayElement) {
+            int offset = pointThat((Expr.ArrayElement) expression);
+            writer.writePush(Segment.THAT, offset);
+        } else if (expression instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expression;
+            for (Expr argument : call.arguments) {
+                emit(argument);
+            }
+            writeCall(call.name, call.arguments.size());
+        } else if (expression instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expression;
+            emit(unary.operand);
+            writer.writeArithmetic(unary.operator);
         } else {
-            numArgs++;
-            compileExpression();
-            while (currentToken.equals(",")) {
-                advance();
-                compileExpression();
-                numArgs++;
+            emitBinary((Expr.Binary) expression);
+        }
+    }
+
+    /**
+     * Points pointer 1 at an array element, or at the array's base if the index is a constant.
+     * Within a statement, the same array and constant index, or the same array and index variable,
+     * reuse pointer 1 as it is rather than setting it again.
+     *
+     * @return the index in the 'that' segment of the element.
+     */
+
+    private int pointThat(Expr.ArrayElement element) throws Exception {
+        if (element.index instanceof Expr.Constant && ((Expr.Constant) element.index).value >= 0) {
+            if (thatArray == null || thatIndex != null || !sameVariable(thatArray, element.array)) {
+                emit(element.array);
+                writer.writePop(Segment.POINTER, 1);
+                thatArray = element.array;
+                thatIndex = null;
             }
+            return ((Expr.Constant) element.index).value;
+        }
+        if (element.index instanceof Expr.Variable && thatArray != null && thatIndex != null
+                && sameVariable(thatArray, element.array) && sameVariable(thatIndex, (Expr.Variable) element.index)) {
+            return 0;
+        }
+        emit(element.array);
+        emit(element.index);
+        writer.writeArithmetic(ArithmeticCommand.ADD);
+        writer.writePop(Segment.POINTER, 1);
+        if (element.index instanceof Expr.Variable) {
+            thatArray = element.array;
+            thatIndex = (Expr.Variable) element.index;
+        } else {
+            thatArray = null;
+        }
+        return 0;
+    }
+
+    private static boolean sameVariable(Expr.Variable a, Expr.Variable b) {
+        return a.segment == b.segment && a.index == b.index;
+    }
+
+    /**
+     * @return whether no subroutine call can change the expression's value: constants, locals,
+     * arguments and this, and operations on them. The caller's 'this' and 'that' are restored on
+     * return, but statics, fields and array elements may be changed by the callee.
+     */
+
+    private static boolean isStable(Expr expression) {
+        if (expression instanceof Expr.Constant) {
+            return true;
+        }
+        if (expression instanceof Expr.Variable) {
+            Segment segment = ((Expr.Variable) expression).segment;
+            return segment == Segment.LOCAL || segment == Segment.ARGUMENT || segment == Segment.POINTER;
+        }
+        if (expression instanceof Expr.Unary) {
+            return isStable(((Expr.Unary) expression).operand);
+        }
+        if (expression instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expression;
+            return isStable(binary.left) && isStable(binary.right);
+        }
+        return false;
+    }
+
+    /**
+     * Writes a call, forgetting what pointer 1 points at if the callee could change the array or
+     * index variable it was worked out from.
+     */
+
+    private void writeCall(String name, int nArgs) throws IOException {
+        writer.writeCall(name, nArgs);
+        if (thatArray != null && !(isStable(thatArray) && (thatIndex == null || isStable(thatIndex)))) {
+            thatArray = null;
+        }
+    }
+
+    /**
+     * Builds a new String from the characters of a string constant, one call per character.
+     */
+
+    private void emitNewString(String value) throws IOException {
+        writer.writePush(Segment.CONSTANT, value.length());
+        writeCall("String.new", 1);
+        for (int i = 0; i < value.length(); i++) {
+            writer.writePush(Segment.CONSTANT, (int) value.charAt(i));
+            writeCall("String.appendChar", 2);
+        }
+    }
+
+    /**
+     * Pushes a string constant from the class's pool. Each distinct constant has a static
+     * variable after the class's own statics, which is 0 until the constant is first evaluated;
+     * the String is built then and reused from then on.
+     */
+
+    private void emitPooledString(String value) throws Exception {
+        Integer pooled = pooledStrings.get(value);
+        if (pooled == null) {
+            pooled = table.varCount(Kind.STATIC) + pooledStrings.size();
+            pooledStrings.put(value, pooled);
+        }
+        String labelBuilt = "STRING_BUILT" + labelCounter;
+        labelCounter++;
+        writer.writePush(Segment.STATIC, pooled);
+        writer.writeIf(labelBuilt);
+        emitNewString(value);
+        writer.writePop(Segment.STATIC, pooled);
+        writer.writeLabel(labelBuilt);
+        writer.writePush(Segment.STATIC, pooled);
+    }
+
+    private void emitBinary(Expr.Binary binary) throws Exception {
+        if (binary.operator == '*') {
+            if (binary.right instanceof Expr.Constant && isAddChainFactor(((Expr.Constant) binary.right).value)) {
+                emitMultiply(binary.left, ((Expr.Constant) binary.right).value);
+                return;
+            }
+            if (binary.left instanceof Expr.Constant && isAddChainFactor(((Expr.Constant) binary.left).value)) {
+                emitMultiply(binary.right, ((Expr.Constant) binary.left).value);
+                return;
+            }
+        }
+        emit(binary.left);
+        emit(binary.right);
+        writer.setSourceLine(binary.line);
+        switch (binary.operator) {
+            case '+':
+                writer.writeArithmetic(ArithmeticCommand.ADD);
+                break;
+            case '-':
+                writer.writeArithmetic(ArithmeticCommand.SUB);
+                break;
+            case '*':
+                writeCall("Math.multiply", 2);
+                break;
+            case '/':
+                writeCall("Math.divide", 2);
+                break;
+            case '<':
+                writer.writeArithmetic(ArithmeticCommand.LT);
+                break;
+            case '>':
+                writer.writeArithmetic(ArithmeticCommand.GT);
+                break;
+            case '=':
+                writer.writeArithmetic(ArithmeticCommand.EQ);
+                break;
+            case '&':
+                writer.writeArithmetic(ArithmeticCommand.AND);
+                break;
+            case '|':
+                writer.writeArithmetic(ArithmeticCommand.OR);
+                break;
+            default:
+                throw new IllegalStateException("Operator: " + binary.operator + " is not a binary operator");
+        }
+    }
+
+    /**
+     * @return whether multiplying by the factor is cheaper as a sequence of additions than a call
+     * to Math.multiply: any power of two, or a factor up to MAX_ADD_CHAIN_FACTOR, either sign.
+     * Multiplying by 0 is left to Math.multiply, which still works out the operand for its side effects.
+     */
+
+    private static boolean isAddChainFactor(int factor) {
+        if (factor == 0 || factor == Short.MIN_VALUE) {
+            return false;
+        }
+        int magnitude = Math.abs(factor);
+        return magnitude <= MAX_ADD_CHAIN_FACTOR || Integer.bitCount(magnitude) == 1;
+    }
+
+    /**
+     * Multiplies by a constant with additions, working through the factor's bits from the top:
+     * each bit doubles the running total, and each set bit adds the operand. The operand is kept
+     * in temp 1 (unless it is a variable, which can just be pushed again) and the running total is
+     * doubled through temp 2. Both are only used within this sequence.
+     */
+
+    private void emitMultiply(Expr operand, int factor) throws Exception {
+        int magnitude = Math.abs(factor);
+        Segment segment;
+        int segmentIndex;
+        if (operand instanceof Expr.Variable) {
+            segment = ((Expr.Variable) operand).segment;
+            segmentIndex = ((Expr.Variable) operand).index;
+        } else {
+            emit(operand);
+            writer.writePop(Segment.TEMP, 1);
+            segment = Segment.TEMP;
+            segmentIndex = 1;
+        }
+        writer.writePush(segment, segmentIndex);
+        boolean totalIsOperand = true;
+        for (int bit = Integer.highestOneBit(magnitude) >> 1; bit > 0; bit >>= 1) {
+            if (totalIsOperand) {
+                writer.writePush(segment, segmentIndex);
+                totalIsOperand = false;
+            } else {
+                writer.writePop(Segment.TEMP, 2);
+                writer.writePush(Segment.TEMP, 2);
+                writer.writePush(Segment.TEMP, 2);
+            }
+            writer.writeArithmetic(ArithmeticCommand.ADD);
+            if ((magnitude & bit) != 0) {
+                writer.writePush(segment, segmentIndex);
+                writer.writeArithmetic(ArithmeticCommand.ADD);
+            }
+        }
+        if (factor < 0) {
+            writer.writeArithmetic(ArithmeticCommand.NEG);
         }
-        return numArgs;
     }
 
-    public void close() {
+    public void close() throws IOException {
         writer.close();
+        tokens.close();
     }
 
     private void eat(String token) throws Exception {
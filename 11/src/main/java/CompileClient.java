@@ -0,0 +1,83 @@
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thin command line client for the CompileServer.
+ * <p>
+ * Usage: CompileClient [--socket PATH] compile|hack|stop [arguments...], where the arguments are
+ * those of JackCompiler (compile) or HackCompiler (hack). Paths are made absolute before they are
+ * sent. If no server is running, compile and hack run in this JVM instead, without a cache.
+ */
+public class CompileClient {
+
+    /**
+     * Sends a request to the server, printing its output.
+     *
+     * @return the exit status of the command.
+     * @throws IOException if the server cannot be reached.
+     */
+    private static int send(Path socketPath, String command, List<String> args) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+            out.writeUTF(command);
+            out.writeInt(args.size());
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            int status = in.readInt();
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            System.out.write(output);
+            System.out.flush();
+            return status;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path socketPath = CompileServer.defaultSocketPath();
+        int i = 0;
+        if (args.length >= 2 && args[0].equals("--socket")) {
+            socketPath = Path.of(args[1]);
+            i = 2;
+        }
+        if (i >= args.length) {
+            throw new InvalidParameterException("Expected a command: compile, hack or stop");
+        }
+        String command = args[i++];
+        List<String> commandArgs = new ArrayList<>();
+        for (; i < args.length; i++) {
+            File file = new File(args[i]);
+            commandArgs.add(!args[i].startsWith("--") && file.exists() ? file.toPath().toAbsolutePath().normalize().toString() : args[i]);
+        }
+        int status;
+        try {
+            status = send(socketPath, command, commandArgs);
+        } catch (IOException e) {
+            if (command.equals(CompileServer.STOP)) {
+                System.out.println("No compile server is running");
+                return;
+            }
+            System.err.println("No compile server on " + socketPath + ", compiling in this process");
+            String[] localArgs = commandArgs.toArray(new String[0]);
+            if (command.equals(CompileServer.COMPILE)) {
+                JackCompiler.main(localArgs);
+            } else if (command.equals(CompileServer.HACK)) {
+                HackCompiler.main(localArgs);
+            } else {
+                throw new InvalidParameterException("Unknown command " + command);
+            }
+            return;
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+}
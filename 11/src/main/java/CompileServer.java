@@ -0,0 +1,164 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.InvalidParameterException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-running compile server, listening on a Unix domain socket, so that repeated builds run
+ * in a JVM which is already started and whose compiler classes are already JIT compiled.
+ * Classes which have not changed since they were last compiled are written out from a ClassCache.
+ * <p>
+ * Each connection carries one request, written with DataOutputStream:
+ * <pre>
+ * UTF     command: "compile" (JackCompiler), "hack" (HackCompiler), or "stop"
+ * int     number of arguments, followed by each argument (UTF)
+ * </pre>
+ * and the server answers with the exit status (int, 0 on success) followed by everything the
+ * command printed, as a length-prefixed byte array. Paths in the arguments must be absolute, as
+ * the server does not share the client's working directory; CompileClient takes care of this.
+ */
+public class CompileServer {
+
+    public static final String COMPILE = "compile";
+    public static final String HACK = "hack";
+    public static final String STOP = "stop";
+
+    private final Path socketPath;
+    private final ClassCache cache;
+    private final ExecutorService pool;
+    private ServerSocketChannel server;
+
+    /**
+     * @param socketPath the path of the socket to listen on.
+     */
+    public CompileServer(Path socketPath) {
+        this.socketPath = socketPath;
+        this.cache = new ClassCache();
+        this.pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return the socket path used when none is given: a file in the temporary directory named
+     * after the user, so that each user has their own server.
+     */
+    public static Path defaultSocketPath() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "jack-compiler-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /**
+     * Accepts connections until a stop request is received.
+     *
+     * @throws IOException if the socket cannot be opened, or another server is already using it.
+     */
+    public void serve() throws IOException {
+        if (Files.exists(socketPath)) {
+            if (isListening(socketPath)) {
+                throw new IOException("A compile server is already listening on " + socketPath);
+            }
+            // The socket was left behind by a server which did not stop cleanly.
+            Files.delete(socketPath);
+        }
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socketPath));
+        System.out.println("Compile server listening on " + socketPath);
+        try {
+            while (server.isOpen()) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    if (!server.isOpen()) {
+                        break;
+                    }
+                    throw e;
+                }
+                pool.execute(() -> handle(client));
+            }
+        } finally {
+            pool.shutdown();
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    private static boolean isListening(Path socketPath) {
+        try (SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            return probe.isConnected();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads one request, runs it, and sends back its status and output.
+     */
+    private void handle(SocketChannel client) {
+        try (SocketChannel channel = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            String command = in.readUTF();
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int status = run(command, args, new PrintStream(output, true));
+            byte[] bytes = output.toByteArray();
+            out.writeInt(status);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+            if (command.equals(STOP)) {
+                server.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Compile server request failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a command, printing its output and any error to the given stream.
+     *
+     * @return the exit status: 0 on success, 1 on failure.
+     */
+    private int run(String command, String[] args, PrintStream out) {
+        try {
+            switch (command) {
+                case COMPILE:
+                    JackCompiler.run(args, out, cache);
+                    return 0;
+                case HACK:
+                    HackCompiler.run(args, out);
+                    return 0;
+                case STOP:
+                    out.println("Compile server stopped");
+                    return 0;
+                default:
+                    throw new InvalidParameterException("Unknown command " + command);
+            }
+        } catch (Exception e) {
+            out.println(e);
+            return 1;
+        }
+    }
+
+    /**
+     * @param args optionally --socket PATH to listen somewhere other than the default socket path.
+     */
+    public static void main(String[] args) throws IOException {
+        Path socketPath = defaultSocketPath();
+        if (args.length == 2 && args[0].equals("--socket")) {
+            socketPath = Paths.get(args[1]);
+        } else if (args.length != 0) {
+            throw new InvalidParameterException("Expected no arguments, or --socket PATH");
+        }
+        new CompileServer(socketPath).serve();
+    }
+}
@@ -0,0 +1,270 @@
+import java.util.List;
+
+/**
+ * An expression, parsed by the CompilationEngine before any code is written for it.
+ * <p>
+ * Expressions are built with the factory methods, which simplify them as they go: constant
+ * sub-expressions are folded with the Hack platform's 16-bit wrap-around, and identities such as
+ * x + 0, x * 1, ~~x and --x are removed. Division by zero is never folded, so it still fails at
+ * run time as the program expects.
+ */
+public abstract class Expr {
+
+    /**
+     * The line of the source file the expression starts on.
+     */
+    final int line;
+
+    private Expr(int line) {
+        this.line = line;
+    }
+
+    /**
+     * @return whether evaluating the expression has no effect besides its value, so it may be
+     * dropped when its value is not needed.
+     */
+    abstract boolean isPure();
+
+    /**
+     * An integer constant, between -32768 and 32767.
+     */
+    static final class Constant extends Expr {
+        final int value;
+
+        Constant(int value, int line) {
+            super(line);
+            this.value = (short) value;
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+    }
+
+    /**
+     * A value in a VM segment: a variable, or this (pointer 0).
+     */
+    static final class Variable extends Expr {
+        final Segment segment;
+        final int index;
+
+        Variable(Segment segment, int index, int line) {
+            super(line);
+            this.segment = segment;
+            this.index = index;
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+    }
+
+    /**
+     * A string constant, which creates a new String each time it is evaluated.
+     */
+    static final class StringConstant extends Expr {
+        final String value;
+
+        StringConstant(String value, int line) {
+            super(line);
+            this.value = value;
+        }
+
+        @Override
+        boolean isPure() {
+            return false;
+        }
+    }
+
+    /**
+     * An array element, array[index].
+     */
+    static final class ArrayElement extends Expr {
+        final Variable array;
+        final Expr index;
+
+        ArrayElement(Variable array, Expr index, int line) {
+            super(line);
+            this.array = array;
+            this.index = index;
+        }
+
+        @Override
+        boolean isPure() {
+            return index.isPure();
+        }
+    }
+
+    /**
+     * A subroutine call. Method calls pass the object as the first argument.
+     */
+    static final class Call extends Expr {
+        final String name;
+        final List<Expr> arguments;
+
+        Call(String name, List<Expr> arguments, int line) {
+            super(line);
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+        @Override
+        boolean isPure() {
+            return false;
+        }
+    }
+
+    /**
+     * A unary operation: - (NEG) or ~ (NOT).
+     */
+    static final class Unary extends Expr {
+        final ArithmeticCommand operator;
+        final Expr operand;
+
+        Unary(ArithmeticCommand operator, Expr operand, int line) {
+            super(line);
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        boolean isPure() {
+            return operand.isPure();
+        }
+    }
+
+    /**
+     * A binary operation, with the operator as written: one of + - * / & | < > =
+     */
+    static final class Binary extends Expr {
+        final char operator;
+        final Expr left;
+        final Expr right;
+
+        Binary(char operator, Expr left, Expr right, int line) {
+            super(line);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean isPure() {
+            // Division calls Math.divide, which reports division by zero as an error.
+            return operator != '/' && left.isPure() && right.isPure();
+        }
+    }
+
+    private static boolean isConstant(Expr expr, int value) {
+        return expr instanceof Constant && ((Constant) expr).value == value;
+    }
+
+    /**
+     * Creates a unary operation, simplified where possible.
+     */
+    static Expr unary(ArithmeticCommand operator, Expr operand, int line) {
+        if (operand instanceof Constant) {
+            int value = ((Constant) operand).value;
+            return new Constant(operator == ArithmeticCommand.NEG ? -value : ~value, line);
+        }
+        if (operand instanceof Unary && ((Unary) operand).operator == operator) {
+            // --x and ~~x
+            return ((Unary) operand).operand;
+        }
+        return new Unary(operator, operand, line);
+    }
+
+    /**
+     * Creates a binary operation, simplified where possible.
+     */
+    static Expr binary(char operator, Expr left, Expr right, int line) {
+        if (left instanceof Constant && right instanceof Constant) {
+            Integer folded = fold(operator, ((Constant) left).value, ((Constant) right).value);
+            if (folded != null) {
+                return new Constant(folded, left.line);
+            }
+        }
+        switch (operator) {
+            case '+':
+            case '|':
+                if (isConstant(right, 0)) {
+                    return left;
+                }
+                if (isConstant(left, 0)) {
+                    return right;
+                }
+                break;
+            case '-':
+                if (isConstant(right, 0)) {
+                    return left;
+                }
+                if (isConstant(left, 0)) {
+                    return unary(ArithmeticCommand.NEG, right, line);
+                }
+                break;
+            case '*':
+                if (isConstant(right, 1)) {
+                    return left;
+                }
+                if (isConstant(left, 1)) {
+                    return right;
+                }
+                if ((isConstant(right, 0) && left.isPure()) || (isConstant(left, 0) && right.isPure())) {
+                    return new Constant(0, left.line);
+                }
+                break;
+            case '/':
+                if (isConstant(right, 1)) {
+                    return left;
+                }
+                break;
+            case '&':
+                if (isConstant(right, -1)) {
+                    return left;
+                }
+                if (isConstant(left, -1)) {
+                    return right;
+                }
+                if ((isConstant(right, 0) && left.isPure()) || (isConstant(left, 0) && right.isPure())) {
+                    return new Constant(0, left.line);
+                }
+                break;
+        }
+        return new Binary(operator, left, right, line);
+    }
+
+    /**
+     * Evaluates an operation on two constants as the Hack platform would.
+     *
+     * @return the result, or null if it should be left to run time.
+     */
+    static Integer fold(char operator, int a, int b) {
+        switch (operator) {
+            case '+':
+                return a + b;
+            case '-':
+                return a - b;
+            case '*':
+                return a * b;
+            case '/':
+                if (b == 0 || (a == Short.MIN_VALUE && b == -1)) {
+                    return null;
+                }
+                return a / b;
+            case '&':
+                return a & b;
+            case '|':
+                return a | b;
+            case '<':
+                return a < b ? -1 : 0;
+            case '>':
+                return a > b ? -1 : 0;
+            case '=':
+                return a == b ? -1 : 0;
+            default:
+                return null;
+        }
+    }
+}
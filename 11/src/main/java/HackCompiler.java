@@ -0,0 +1,242 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles a Jack program straight to a .hack file in a single process.
+ * <p>
+ * Each class is parsed by a CompilationEngine whose VMWriter hands every command, as a VMCommand,
+ * to the VM translator's CodeWriter, which writes its instructions into the in-memory Hack
+ * backend. Nothing is written to disk until the finished .hack file, unless --intermediates asks
+ * for the .vm and .asm files as well, for debugging.
+ * <p>
+ * .vm files in the directory which have no .jack file, such as the OS classes, are translated
+ * along with the compiled classes.
+ * <p>
+ * With --prune, the call graph of the whole program, .vm files included, is built first, and
+ * only the functions which can be called from Sys.init or Main.main are compiled and translated.
+ */
+public class HackCompiler {
+
+    private boolean intermediates;
+    private boolean stringPool;
+    private boolean optimise;
+    private boolean prune;
+    private Log.Level logLevel = Log.Level.INFO;
+    private Log log;
+    private boolean directory;
+    private String outPath;
+    private final List<String> jackPaths = new ArrayList<>();
+    private final List<String> vmPaths = new ArrayList<>();
+
+
+    private void processArgs(String[] args) throws FileNotFoundException {
+        List<String> arguments = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--intermediates")) {
+                intermediates = true;
+            } else if (arg.equals("--optimise")) {
+                optimise = true;
+            } else if (arg.equals("--prune")) {
+                prune = true;
+            } else if (arg.equals("--string-pool")) {
+                stringPool = true;
+            } else if (arg.equals("--quiet")) {
+                logLevel = Log.Level.ERROR;
+            } else if (arg.equals("--verbose")) {
+                logLevel = Log.Level.DEBUG;
+            } else if (arg.equals("--trace")) {
+                logLevel = Log.Level.TRACE;
+            } else if (arg.startsWith("--")) {
+                throw new InvalidParameterException("Unknown option " + arg);
+            } else {
+                arguments.add(arg);
+            }
+        }
+        if (arguments.size() != 1) {
+            throw new InvalidParameterException("Expected only one ARG - provide a directory or a single .jack file.");
+        }
+        File file = new File(arguments.get(0));
+        if (file.isDirectory()) {
+            directory = true;
+            for (File input : file.listFiles()) {
+                String path = input.getPath();
+                if (path.endsWith(".jack")) {
+                    jackPaths.add(path);
+                } else if (path.endsWith(".vm") && !new File(path.replaceAll("\\.vm$", ".jack")).isFile()) {
+                    vmPaths.add(path);
+                }
+            }
+            if (jackPaths.size() == 0) {
+                throw new FileNotFoundException("No .jack files in directory");
+            }
+            outPath = new File(file, file.getAbsoluteFile().getName()).getPath();
+        } else if (file.isFile() && file.getName().endsWith(".jack")) {
+            jackPaths.add(file.getPath());
+            outPath = file.getPath().replaceAll("\\.jack$", "");
+        } else {
+            throw new FileNotFoundException("Not a valid file or directory");
+        }
+    }
+
+    /**
+     * Builds the call graph of the whole program, without writing anything.
+     *
+     * @return the functions which can be called from Sys.init or Main.main.
+     */
+    private Set<String> findReachable() throws Exception {
+        CallGraph graph = new CallGraph();
+        for (String path : jackPaths) {
+            CompilationEngine compilationEngine = new CompilationEngine(path, new VMWriter(graph));
+            compilationEngine.setLog(log);
+            try {
+                compilationEngine.compileClass();
+            } catch (Exception e) {
+                // Reported when the class is compiled.
+            } finally {
+                compilationEngine.close();
+            }
+        }
+        for (String path : vmPaths) {
+            Parser parser = new Parser(path);
+            String function = null;
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                VMCommand command = parser.toCommand();
+                if (command == null) {
+                    continue;
+                }
+                if (command.getType() == Command.C_FUNCTION) {
+                    function = command.getArg1();
+                    graph.addFunction(function);
+                } else if (command.getType() == Command.C_CALL) {
+                    graph.addCall(function, command.getArg1());
+                }
+            }
+        }
+        Set<String> reachable = graph.reachableFrom(CallGraph.ROOTS);
+        log.info("Keeping " + reachable.size() + " of " + graph.size() + " functions.");
+        return reachable;
+    }
+
+    private void build() throws Exception {
+        Set<String> reachable = prune ? findReachable() : null;
+        HackOutput hack = new HackOutput(outPath + ".hack");
+        AsmTextOutput asm = intermediates ? new AsmTextOutput(outPath + ".asm") : null;
+        CodeWriter codeWriter = new CodeWriter(asm != null ? new TeeAsmOutput(hack, asm) : hack);
+        try {
+            write(codeWriter, reachable);
+        } catch (Exception e) {
+            // Leave no partial assembly behind.
+            if (asm != null) {
+                asm.close();
+                Files.deleteIfExists(Paths.get(outPath + ".asm"));
+            }
+            throw e;
+        }
+        log.info("Wrote " + outPath + ".hack");
+    }
+
+    /**
+     * Compiles and translates the whole program through the code writer, and closes it.
+     *
+     * @param codeWriter the code writer.
+     * @param reachable  the functions to keep, or null to keep them all.
+     * @throws Exception if any class fails to compile or a .vm file cannot be translated.
+     */
+    private void write(CodeWriter codeWriter, Set<String> reachable) throws Exception {
+        if (directory) {
+            codeWriter.writeInit();
+        }
+        // A class that fails to compile does not stop the others, so that all of their errors are
+        // found, but no .hack file is written.
+        int failures = 0;
+        for (String path : jackPaths) {
+            log.info("Compiling " + path + "... ");
+            String vmPath = path.replaceAll("\\.jack$", ".vm");
+            String vmFileName = new File(vmPath).getName();
+            codeWriter.setFileName(vmFileName);
+            VMWriter writer = new VMWriter(codeWriter, vmFileName, intermediates ? vmPath : null);
+            CompilationEngine compilationEngine = new CompilationEngine(path, writer);
+            compilationEngine.setLog(log);
+            if (stringPool) {
+                compilationEngine.setStringPool();
+            }
+            if (optimise) {
+                compilationEngine.setOptimise();
+            }
+            if (reachable != null) {
+                compilationEngine.setReachable(reachable);
+            }
+            try {
+                compilationEngine.compileClass();
+                log.info("done.");
+            } catch (Exception e) {
+                failures++;
+                log.log(Log.Level.ERROR, "Failed to compile " + path + ": " + e.getMessage());
+            } finally {
+                compilationEngine.close();
+            }
+        }
+        if (failures > 0) {
+            throw new Exception(failures + " of " + jackPaths.size() + " classes failed to compile");
+        }
+        for (String path : vmPaths) {
+            log.info("Translating " + path + "... ");
+            Parser parser = new Parser(path);
+            codeWriter.setFileName(new File(path).getName());
+            boolean dropping = false;
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                VMCommand command = parser.toCommand();
+                if (command != null && command.getType() == Command.C_FUNCTION) {
+                    dropping = reachable != null && !reachable.contains(command.getArg1());
+                }
+                if (command != null && !dropping) {
+                    codeWriter.write(command);
+                }
+            }
+        }
+        codeWriter.close();
+    }
+
+    /**
+     * Runs the compiler for the compile server, printing to the given stream.
+     *
+     * @param args the command line arguments.
+     * @param out  the stream to print messages to.
+     */
+    static void run(String[] args, PrintStream out) throws Exception {
+        HackCompiler compiler = new HackCompiler();
+        compiler.processArgs(args);
+        compiler.log = new Log(compiler.logLevel, out);
+        try {
+            compiler.build();
+        } finally {
+            compiler.log.close();
+        }
+    }
+
+    /**
+     * @param args a directory or a single .jack file, optionally preceded by:
+     *             --intermediates to also write the .vm and .asm files.
+     *             --string-pool to build each string constant once.
+     *             --optimise to optimise the VM code of each subroutine.
+     *             --prune to leave out functions which can never be called.
+     *             --quiet, --verbose or --trace to change how much is printed.
+     */
+    public static void main(String[] args) throws Exception {
+        HackCompiler compiler = new HackCompiler();
+        compiler.processArgs(args);
+        compiler.log = Log.console(compiler.logLevel);
+        try {
+            compiler.build();
+        } finally {
+            compiler.log.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Assembles the CodeWriter's instructions straight into a .hack file, without writing
+ * and re-parsing an intermediate .asm file.
+ * <p>
+ * Instructions are kept in memory as they are written: C instructions and constant A
+ * instructions are encoded immediately, labels are bound to the current ROM address, and
+ * A instructions referring to symbols are resolved once all labels are known, on close().
+ */
+public class HackOutput implements AsmOutput {
+
+    private static final int UNRESOLVED = -1;
+
+    private final String outPath;
+    private final HashMap<String, Integer> symbols;
+    private int[] code;
+    private String[] references;
+    private int size;
+
+    /**
+     * @param outPath the path to the .hack file.
+     */
+    public HackOutput(String outPath) {
+        this.outPath = outPath;
+        this.symbols = new HashMap<String, Integer>();
+        this.code = new int[1024];
+        this.references = new String[1024];
+        this.size = 0;
+        for (int i = 0; i < 16; i++) {
+            symbols.put("R" + i, i);
+        }
+        symbols.put("SCREEN", 16384);
+        symbols.put("KBD", 24576);
+        symbols.put("SP", 0);
+        symbols.put("LCL", 1);
+        symbols.put("ARG", 2);
+        symbols.put("THIS", 3);
+        symbols.put("THAT", 4);
+    }
+
+    @Override
+    public void comment(String text) {
+        // Comments are not part of the binary.
+    }
+
+    @Override
+    public void label(String symbol) {
+        symbols.put(symbol, size);
+    }
+
+    @Override
+    public void aInstruction(String symbol) {
+        add(UNRESOLVED, symbol);
+    }
+
+    @Override
+    public void aInstruction(int value) {
+        add(value, null);
+    }
+
+    @Override
+    public void cInstruction(String instruction) {
+        add(HackCode.encode(instruction), null);
+    }
+
+    @Override
+    public int romAddress() {
+        return size;
+    }
+
+    @Override
+    public int outputLine() {
+        // A .hack file holds exactly one instruction per line.
+        return size + 1;
+    }
+
+    private void add(int word, String reference) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+            references = Arrays.copyOf(references, size * 2);
+        }
+        code[size] = word;
+        references[size] = reference;
+        size++;
+    }
+
+    /**
+     * Resolves the remaining symbols and writes the program as a .hack file.
+     * Symbols which are not labels are allocated RAM from address 16, in order of first use.
+     */
+    @Override
+    public void close() throws IOException {
+        int ram = 16;
+        byte[] line = new byte[17];
+        line[16] = '\n';
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(outPath), 1 << 16)) {
+            for (int i = 0; i < size; i++) {
+                int word = code[i];
+                if (references[i] != null) {
+                    Integer address = symbols.get(references[i]);
+                    if (address == null) {
+                        address = ram++;
+                        symbols.put(references[i], address);
+                    }
+                    word = address;
+                }
+                for (int bit = 0; bit < 16; bit++) {
+                    line[bit] = (byte) (((word >> (15 - bit)) & 1) == 1 ? '1' : '0');
+                }
+                stream.write(line);
+            }
+        }
+    }
+}
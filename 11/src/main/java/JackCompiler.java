@@ -1,16 +1,79 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class JackCompiler {
 
+    /**
+     * Part of every class's hash. Change this whenever the compiler's output changes, so classes
+     * compiled by an older version are not taken to be up to date.
+     */
+    private static final String VERSION = "JackCompiler-7";
+
+    private boolean lineMaps;
+    private boolean binaryVM;
+    private boolean stringPool;
+    private boolean optimise;
+    private boolean prune;
+    // While pruning, the subroutines of the program which can be called.
+    private Set<String> reachable;
+    // The number of classes compiled at once. 1 compiles sequentially.
+    private int jobs = 1;
+    private Log.Level logLevel = Log.Level.INFO;
+    private Log log;
+    private ClassCache cache;
+    private BuildManifest manifest;
+    private boolean force;
+
 
     private List<String> processArgs(String[] args) throws FileNotFoundException {
-        if (args.length > 1) {
+        List<String> arguments = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--lines")) {
+                lineMaps = true;
+            } else if (arg.equals("--force")) {
+                force = true;
+            } else if (arg.equals("--optimise")) {
+                optimise = true;
+            } else if (arg.equals("--prune")) {
+                prune = true;
+            } else if (arg.equals("--string-pool")) {
+                stringPool = true;
+            } else if (arg.equals("--binary-vm")) {
+                binaryVM = true;
+            } else if (arg.equals("--quiet")) {
+                logLevel = Log.Level.ERROR;
+            } else if (arg.equals("--verbose")) {
+                logLevel = Log.Level.DEBUG;
+            } else if (arg.equals("--trace")) {
+                logLevel = Log.Level.TRACE;
+            } else if (arg.equals("--parallel")) {
+                jobs = Runtime.getRuntime().availableProcessors();
+            } else if (arg.equals("--jobs")) {
+                if (i + 1 == args.length || !args[i + 1].matches("[1-9][0-9]*")) {
+                    throw new InvalidParameterException("--jobs must be followed by a positive number");
+                }
+                jobs = Integer.parseInt(args[++i]);
+            } else if (arg.startsWith("--")) {
+                throw new InvalidParameterException("Unknown option " + arg);
+            } else {
+                arguments.add(arg);
+            }
+        }
+        if (arguments.size() != 1) {
             throw new InvalidParameterException("Expected only one ARG - provide a directory or a single .jack file.");
         }
-        File file = new File(args[0]);
+        File file = new File(arguments.get(0));
         List<String> paths = new ArrayList<>();
         if (file.isDirectory()) {
             for (File inputs : file.listFiles()) {
@@ -31,19 +94,216 @@ public class JackCompiler {
 
 
     private void compile(List<String> paths) throws Exception {
+        manifest = BuildManifest.load(new File(paths.get(0)).getAbsoluteFile().getParentFile());
+        if (prune) {
+            reachable = findReachable(paths);
+        }
+        try {
+            if (jobs > 1 && paths.size() > 1) {
+                compileParallel(paths);
+            } else {
+                // A class that fails to compile does not stop the others, so that all of their errors are found.
+                int failures = 0;
+                for (String path : paths) {
+                    try {
+                        compileFile(path, log);
+                    } catch (Exception e) {
+                        failures++;
+                        log.log(Log.Level.ERROR, "Failed to compile " + path + ": " + e.getMessage());
+                    }
+                }
+                if (failures > 0) {
+                    throw new Exception(failures + " of " + paths.size() + " classes failed to compile");
+                }
+            }
+        } finally {
+            manifest.write();
+        }
+    }
+
+    /**
+     * Parses every class of the program and builds its call graph, without writing anything.
+     *
+     * @param paths the paths to the .jack files.
+     * @return the subroutines which can be called from Main.main or Sys.init.
+     */
+    private Set<String> findReachable(List<String> paths) throws Exception {
+        CallGraph graph = new CallGraph();
         for (String path : paths) {
-            System.out.println("Compiling " + path + "... ");
-            CompilationEngine compilationEngine = new CompilationEngine(path, path.replace(".jack", ".vm"));
+            CompilationEngine compilationEngine = new CompilationEngine(path, new VMWriter(graph));
+            compilationEngine.setLog(log);
+            try {
+                compilationEngine.compileClass();
+            } catch (Exception e) {
+                // Reported when the class is compiled.
+            } finally {
+                compilationEngine.close();
+            }
+        }
+        Set<String> reachable = graph.reachableFrom(CallGraph.ROOTS);
+        log.info("Keeping " + reachable.size() + " of " + graph.size() + " subroutines.");
+        return reachable;
+    }
+
+    /**
+     * @param className the name of a class.
+     * @return the class's subroutines which are kept, in order, as part of its hash.
+     */
+    private String reachableIn(String className) {
+        List<String> kept = new ArrayList<>();
+        for (String function : reachable) {
+            if (function.startsWith(className + ".")) {
+                kept.add(function);
+            }
+        }
+        Collections.sort(kept);
+        return String.join(",", kept);
+    }
+
+    /**
+     * Compiles one class.
+     *
+     * @param path the path to the .jack file.
+     * @param log  the log to print progress messages to.
+     */
+    private void compileFile(String path, Log log) throws Exception {
+        log.info("Compiling " + path + "... ");
+        String outPath = path.replace(".jack", binaryVM ? VMWriter.BINARY_EXTENSION : ".vm");
+        String name = new File(path).getName();
+        // The options, and which subroutines are kept, are part of the hash, as they change what is written.
+        String key = ClassCache.hash(VERSION + (binaryVM ? " vmb" : " vm") + (lineMaps ? " lines" : "")
+                + (stringPool ? " string-pool" : "") + (optimise ? " optimise" : "")
+                + (reachable != null ? " prune " + reachableIn(name.replaceAll("\\.jack$", "")) : "") + "\0" + name,
+                Files.readAllBytes(Paths.get(path)));
+        if (!force && manifest.isUpToDate(name, key) && new File(outPath).isFile()
+                && (!lineMaps || new File(outPath + LineMap.EXTENSION).isFile())) {
+            log.info("up to date.");
+            return;
+        }
+        manifest.remove(name);
+        if (cache != null) {
+            ClassCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                Files.write(Paths.get(outPath), entry.getOutput());
+                if (entry.getLineMap() != null) {
+                    Files.write(Paths.get(outPath + LineMap.EXTENSION), entry.getLineMap());
+                }
+                manifest.record(name, key);
+                log.info("done (unchanged).");
+                return;
+            }
+        }
+        CompilationEngine compilationEngine = new CompilationEngine(path, outPath, binaryVM);
+        compilationEngine.setLog(log);
+        if (stringPool) {
+            compilationEngine.setStringPool();
+        }
+        if (optimise) {
+            compilationEngine.setOptimise();
+        }
+        if (reachable != null) {
+            compilationEngine.setReachable(reachable);
+        }
+        LineMap lineMap = null;
+        if (lineMaps) {
+            lineMap = new LineMap();
+            compilationEngine.setLineMap(lineMap);
+        }
+        try {
             compilationEngine.compileClass();
+        } finally {
             compilationEngine.close();
-            System.out.print("done.");
+        }
+        if (lineMap != null) {
+            lineMap.write(outPath + LineMap.EXTENSION);
+        }
+        if (cache != null) {
+            cache.put(key, new ClassCache.Entry(Files.readAllBytes(Paths.get(outPath)),
+                    lineMap != null ? Files.readAllBytes(Paths.get(outPath + LineMap.EXTENSION)) : null));
+        }
+        manifest.record(name, key);
+        log.info("done.");
+    }
+
+    /**
+     * Compiles the classes on a pool of threads. Classes share no state, so each is compiled by
+     * its own CompilationEngine. Each class's progress messages are collected and printed once it
+     * is done, in the order of the paths, so the output reads the same as a sequential build.
+     * A class that fails to compile does not stop the others; its error is reported in its place.
+     *
+     * @param paths the paths to the .jack files.
+     * @throws Exception if any class fails to compile.
+     */
+    private void compileParallel(List<String> paths) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, paths.size()));
+        try {
+            List<ByteArrayOutputStream> outputs = new ArrayList<>();
+            List<Future<Void>> results = new ArrayList<>();
+            for (String path : paths) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                Log fileLog = new Log(logLevel, new PrintStream(output));
+                outputs.add(output);
+                results.add(pool.submit(() -> {
+                    try {
+                        compileFile(path, fileLog);
+                    } finally {
+                        fileLog.close();
+                    }
+                    return null;
+                }));
+            }
+            int failures = 0;
+            for (int i = 0; i < paths.size(); i++) {
+                String error = null;
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    error = String.valueOf(e.getCause().getMessage());
+                }
+                log.write(outputs.get(i).toString());
+                if (error != null) {
+                    failures++;
+                    log.log(Log.Level.ERROR, "Failed to compile " + paths.get(i) + ": " + error);
+                }
+            }
+            if (failures > 0) {
+                throw new Exception(failures + " of " + paths.size() + " classes failed to compile");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs the compiler for the compile server, printing to the given stream and reusing the
+     * output of classes which have not changed since they were last compiled.
+     *
+     * @param args  the command line arguments.
+     * @param out   the stream to print messages to.
+     * @param cache the cache of compiled classes.
+     */
+    static void run(String[] args, PrintStream out, ClassCache cache) throws Exception {
+        JackCompiler compiler = new JackCompiler();
+        List<String> paths = compiler.processArgs(args);
+        compiler.log = new Log(compiler.logLevel, out);
+        compiler.cache = cache;
+        try {
+            compiler.compile(paths);
+            compiler.log.info("Compilation Successful");
+        } finally {
+            compiler.log.close();
         }
     }
 
     public static void main(String[] args) throws Exception {
         JackCompiler analyser = new JackCompiler();
         List<String> paths = analyser.processArgs(args);
-        analyser.compile(paths);
-        System.out.println("Compilation Successful");
+        analyser.log = Log.console(analyser.logLevel);
+        try {
+            analyser.compile(paths);
+            analyser.log.info("Compilation Successful");
+        } finally {
+            analyser.log.close();
+        }
     }
 }
@@ -1,41 +1,217 @@
 import java.io.*;
 import java.util.Arrays;
 
-public class JackTokeniser {
+public class JackTokeniser implements Closeable {
 
-    private StringBuilder currentToken;
-    private StringBuilder input;
-    private int len;
-    private int pos;
-    private final String KEYWORD_REGEX = "^(class|method|function|constructor|int|boolean|char|void|var|static|field|let|do|if|else|while|return|true|false|null|this)$";
-    private final String SYMBOLS = "[{}()\\[\\].,;+\\-*/&|<>=~]";
-    private final String IDENTIFIER_REGEX = "^[A-Za-z_][A-Za-z0-9_]*$";
-    private final String STR_CONST_REGEX = "^\"[^\"\\n]*\"$";
-    private final String[] KEYWORDS = {"class", "method", "function", "constructor", "int", "boolean", "char", "void", "var",
+    // Token kinds, shared with TokenBuffer.
+    private static final byte KEYWORD = TokenBuffer.KEYWORD;
+    private static final byte SYMBOL = TokenBuffer.SYMBOL;
+    private static final byte IDENTIFIER = TokenBuffer.IDENTIFIER;
+    private static final byte INT_CONST = TokenBuffer.INT_CONST;
+    private static final byte STRING_CONST = TokenBuffer.STRING_CONST;
+    private static final byte NONE = TokenBuffer.NONE;
+
+    private static final Token[] TOKEN_TYPES = Token.values();
+
+    // Character classes used by the lexer's transitions.
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte LETTER = 2;
+    private static final byte DIGIT = 3;
+    private static final byte SYMBOL_CHAR = 4;
+    private static final byte QUOTE = 5;
+    private static final byte NEWLINE = 6;
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    static final String[] KEYWORDS = {"class", "method", "function", "constructor", "int", "boolean", "char", "void", "var",
             "static", "field", "let", "do", "if", "else", "while", "return", "true", "false", "null", "this"};
+    private static final String SYMBOLS = "{}()[].,;+-*/&|<>=~";
+    private static final String[] SYMBOL_STRINGS = new String[128];
+
+    // Keywords are recognised with a perfect hash on the first two characters and the length.
+    private static final int KEYWORD_TABLE_SIZE = 32;
+    private static final char[][] KEYWORD_TABLE = new char[KEYWORD_TABLE_SIZE][];
+    private static final int[] KEYWORD_IDS = new int[KEYWORD_TABLE_SIZE];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHAR_CLASS[c] = LETTER;
+            CHAR_CLASS[Character.toUpperCase(c)] = LETTER;
+        }
+        CHAR_CLASS['_'] = LETTER;
+        for (char c = '0'; c <= '9'; c++) {
+            CHAR_CLASS[c] = DIGIT;
+        }
+        for (char c : SYMBOLS.toCharArray()) {
+            CHAR_CLASS[c] = SYMBOL_CHAR;
+            SYMBOL_STRINGS[c] = String.valueOf(c);
+        }
+        CHAR_CLASS[' '] = SPACE;
+        CHAR_CLASS['\t'] = SPACE;
+        CHAR_CLASS['\r'] = SPACE;
+        CHAR_CLASS['\f'] = SPACE;
+        CHAR_CLASS['\n'] = NEWLINE;
+        CHAR_CLASS['"'] = QUOTE;
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            char[] word = KEYWORDS[i].toCharArray();
+            int slot = keywordHash(word, 0, word.length);
+            if (KEYWORD_TABLE[slot] != null) {
+                throw new IllegalStateException("Keyword hash collision: " + KEYWORDS[i]);
+            }
+            KEYWORD_TABLE[slot] = word;
+            KEYWORD_IDS[slot] = i;
+        }
+    }
+
+    // Size of the initial character window. It only grows for a token longer than the window.
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String filePath;
+    private final Reader reader;
+    private char[] input;
+    private int limit;
+    private int pos;
+    private boolean endOfInput;
+    private int line;
+    private int column;
+
+    // The current token. While a token is being read, start is also the first character that
+    // must be kept when the window is refilled.
+    private byte kind;
+    private int start;
+    private int length;
+    private int value;
+    private int tokenLine;
+    private int tokenColumn;
+    private String text;
 
     /**
      * The tokenizer removes all comments and white space from the input stream
      * and breaks it into Jack language tokens, as specified in the Jack grammar.
+     * <p>
+     * Tokens are recognised by a hand written state machine which makes a single pass over the
+     * characters of the file. The file is streamed through a fixed size window rather than read
+     * into memory, so memory use does not depend on the size of the file. Each token is described
+     * by its kind, its text, its line and column, and an int value: the keyword's index in
+     * KEYWORDS, the symbol character, or the integer constant.
      *
      * @throws FileNotFoundException if the input file cannot be found.
      */
 
 
     public JackTokeniser(String filePath) throws IOException {
-        BufferedReader file = new BufferedReader(new FileReader(filePath));
-        this.input = new StringBuilder();
-        String line;
-        while ((line = file.readLine()) != null) {
-            input.append(line.replaceAll("(//|/\\*\\*|^\\s*\\*\\s*).*", ""));
+        this.filePath = filePath;
+        this.reader = new FileReader(filePath);
+        this.input = new char[BUFFER_SIZE];
+        this.limit = 0;
+        this.pos = 0;
+        this.endOfInput = false;
+        this.line = 1;
+        this.column = 1;
+        this.kind = NONE;
+        this.start = -1;
+        this.tokenLine = 1;
+        this.tokenColumn = 1;
+    }
+
+    private static int keywordHash(char[] chars, int from, int length) {
+        return (chars[from] * 26 + chars[from + 1] * 22 + length) & (KEYWORD_TABLE_SIZE - 1);
+    }
+
+    private static byte charClass(char c) {
+        return c < 128 ? CHAR_CLASS[c] : OTHER;
+    }
+
+    /**
+     * Makes sure the window holds at least the given number of characters from the current
+     * position, reading more of the file if needed.
+     *
+     * @param count the number of characters needed.
+     * @return false if the file ends before that many characters.
+     */
+    private boolean available(int count) throws IOException {
+        while (pos + count > limit && !endOfInput) {
+            fill();
+        }
+        return pos + count <= limit;
+    }
 
+    /**
+     * Moves the characters still needed to the front of the window and reads more of the file
+     * after them.
+     */
+    private void fill() throws IOException {
+        int keep = start >= 0 ? start : pos;
+        if (keep > 0) {
+            System.arraycopy(input, keep, input, 0, limit - keep);
+            limit -= keep;
+            pos -= keep;
+            if (start >= 0) {
+                start = 0;
+            }
         }
-        this.len = input.length();
-        this.pos = 0;
+        if (limit == input.length) {
+            input = Arrays.copyOf(input, input.length * 2);
+        }
+        int read = reader.read(input, limit, input.length - limit);
+        if (read == -1) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    /**
+     * Moves past the character at the current position, keeping track of the line and column.
+     */
+    private void step() {
+        if (input[pos] == '\n') {
+            line++;
+            column = 1;
+        } else {
+            column++;
+        }
+        pos++;
+    }
+
+    private Exception error(int line, int column, String message) {
+        return new Exception(filePath + ":" + line + ":" + column + ": " + message);
     }
 
     public String getCurrentToken() {
-        return currentToken.toString();
+        return text;
+    }
+
+    /**
+     * Provides the line of the source file the current token is on.
+     *
+     * @return the line number of the current token, starting from 1.
+     */
+    public int getLineNumber() {
+        return tokenLine;
+    }
+
+    /**
+     * Provides the column of the source file the current token starts at.
+     *
+     * @return the column number of the current token, starting from 1.
+     */
+    public int getColumnNumber() {
+        return tokenColumn;
+    }
+
+    /**
+     * @return the kind of the current token, as one of the TokenBuffer kinds.
+     */
+    byte getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the keyword id, symbol character or integer value of the current token.
+     */
+    int getValue() {
+        return value;
     }
 
     /**
@@ -43,83 +219,144 @@ public class JackTokeniser {
      *
      * @return false if there are no more tokens in the input file, otherwise true.
      */
-    public boolean hasMoreTokens() {
-        if (pos < len) {
-            return true;
-        }
-        return false;
+    public boolean hasMoreTokens() throws Exception {
+        skipWhitespaceAndComments();
+        return available(1);
     }
 
     /**
-     * Advances to the next token. Should only be called if hasMoreTokens returns true.
+     * Skips white space, // comments, and block comments.
+     *
+     * @throws Exception if a block comment is not closed.
      */
-
-    public void advance() {
-        currentToken = new StringBuilder();
-        while (pos < len) {
-            if (Character.toString(input.charAt(pos)).matches(SYMBOLS)) {
-                // If we have some input already, we do not want to include the symbol as part of the token.
-                if (currentToken.length() > 0) {
-                    return;
+    private void skipWhitespaceAndComments() throws Exception {
+        while (available(1)) {
+            char c = input[pos];
+            byte charClass = charClass(c);
+            if (charClass == SPACE || charClass == NEWLINE) {
+                step();
+            } else if (c == '/' && available(2) && input[pos + 1] == '/') {
+                while (available(1) && input[pos] != '\n') {
+                    step();
                 }
-                // If we do not, this is the current token, so append, advance the pointer, and return.
-                else {
-                    currentToken.append(input.charAt(pos));
-                    pos++;
-                    return;
+            } else if (c == '/' && available(2) && input[pos + 1] == '*') {
+                // Covers both /* */ and /** */ comments.
+                int commentLine = line;
+                int commentColumn = column;
+                step();
+                step();
+                while (available(2) && !(input[pos] == '*' && input[pos + 1] == '/')) {
+                    step();
                 }
-            }
-            // Else, if we encounter whitespace not part of a string, advance and return.
-            // NOTE: Analyser will handle case with multiple spaces in a row. Simply do not include in token.
-
-            else if (Character.toString(input.charAt(pos)).matches("\\s") && !currentToken.toString().contains("\"")) {
-                pos++;
+                if (!available(2)) {
+                    throw error(commentLine, commentColumn, "comment is not closed");
+                }
+                step();
+                step();
+            } else {
                 return;
             }
-            // Else, we have a character we can just append to the current token, and advance the pointer.
-            else {
-                currentToken.append(input.charAt(pos));
-                pos++;
-            }
         }
     }
 
     /**
-     * Provides the type of the current token.
+     * Advances to the next token. Should only be called if hasMoreTokens returns true.
      *
-     * @return the type of the current token
+     * @throws Exception if the input does not contain a valid token.
      */
 
-    public Token tokenType() throws Exception {
-
-        // Handle case where file has multiple whitespace characters in a row, avoiding NPE
-        if (currentToken.length() == 0) {
-            return Token.WHITESPACE;
+    public void advance() throws Exception {
+        skipWhitespaceAndComments();
+        text = null;
+        tokenLine = line;
+        tokenColumn = column;
+        if (!available(1)) {
+            kind = NONE;
+            length = 0;
+            text = "";
+            return;
         }
-
-        String token = currentToken.toString();
-        if (token.matches(KEYWORD_REGEX)) {
-            return Token.KEYWORD;
-        } else if (token.matches(SYMBOLS)) {
-            return Token.SYMBOL;
-        } else if (token.matches(IDENTIFIER_REGEX)) {
-            return Token.IDENTIFIER;
-        } else if (token.matches(STR_CONST_REGEX)) {
-            return Token.STRING_CONST;
+        start = pos;
+        char c = input[pos];
+        switch (charClass(c)) {
+            case LETTER:
+                step();
+                while (available(1) && (charClass(input[pos]) == LETTER || charClass(input[pos]) == DIGIT)) {
+                    step();
+                }
+                length = pos - start;
+                kind = IDENTIFIER;
+                if (length > 1) {
+                    int slot = keywordHash(input, start, length);
+                    char[] keyword = KEYWORD_TABLE[slot];
+                    if (keyword != null && matches(keyword)) {
+                        kind = KEYWORD;
+                        value = KEYWORD_IDS[slot];
+                        text = KEYWORDS[value];
+                    }
+                }
+                break;
+            case DIGIT:
+                value = 0;
+                while (available(1) && charClass(input[pos]) == DIGIT) {
+                    value = value * 10 + (input[pos] - '0');
+                    if (value > 32767) {
+                        throw error(tokenLine, tokenColumn, "integer must be 0 <= num <= 32767");
+                    }
+                    step();
+                }
+                length = pos - start;
+                kind = INT_CONST;
+                break;
+            case SYMBOL_CHAR:
+                step();
+                length = 1;
+                kind = SYMBOL;
+                value = c;
+                text = SYMBOL_STRINGS[c];
+                break;
+            case QUOTE:
+                step();
+                while (available(1) && input[pos] != '"' && input[pos] != '\n') {
+                    step();
+                }
+                if (!available(1) || input[pos] != '"') {
+                    throw error(tokenLine, tokenColumn, "string constant is not closed");
+                }
+                step();
+                length = pos - start;
+                kind = STRING_CONST;
+                break;
+            default:
+                throw error(tokenLine, tokenColumn, "unexpected character '" + c + "'");
+        }
+        if (text == null) {
+            text = new String(input, start, length);
         }
-        // if method has not returned, it may be an integer constant. Attempt to parse as int, and handle exceptions.
-        // NOTE: 0 <= int_const <= 32767
+        // The token's characters are no longer needed once its text has been taken.
+        start = -1;
+    }
 
-        try {
-            int potentialInt = Integer.parseInt(token);
-            if (potentialInt >= 0 && potentialInt <= 32767) {
-                return Token.INT_CONST;
-            } else {
-                throw new Exception("Integer " + token + " must be 0 <= num <= 32767");
+    private boolean matches(char[] keyword) {
+        if (keyword.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (input[start + i] != keyword[i]) {
+                return false;
             }
-        } catch (NumberFormatException e) {
-            throw new Exception("Token " + token + " Not a valid token...");
         }
+        return true;
+    }
+
+    /**
+     * Provides the type of the current token.
+     *
+     * @return the type of the current token
+     */
+
+    public Token tokenType() {
+        return kind == NONE ? Token.WHITESPACE : TOKEN_TYPES[kind];
     }
 
     /**
@@ -130,11 +367,10 @@ public class JackTokeniser {
      */
 
     public String keyWord() throws Exception {
-        String wordString = currentToken.toString();
-        if (Arrays.asList(KEYWORDS).contains(wordString)) {
-            return wordString;
+        if (kind == KEYWORD) {
+            return KEYWORDS[value];
         } else {
-            throw new Exception("Keyword: " + wordString + " not valid keyword");
+            throw new Exception("Keyword: " + getCurrentToken() + " not valid keyword");
         }
     }
 
@@ -144,7 +380,7 @@ public class JackTokeniser {
      * @return a character which represents the current symbol.
      */
     public String getSym() {
-        return currentToken.toString();
+        return getCurrentToken();
     }
 
     /**
@@ -154,24 +390,31 @@ public class JackTokeniser {
      */
 
     public String getIdent() {
-        return currentToken.toString();
+        return getCurrentToken();
     }
 
     /**
      * Provides the integer value of the current token. Should only be called when current token is int_const
      *
      * @return the integer value which is the current token.
-     * @throws NumberFormatException if currentToken is not an int_const
      */
     public int intVal() {
-        return Integer.parseInt(currentToken.toString());
+        return value;
     }
 
     /**
-     * Provides the string value of the current token. Should only be called when current token is string_const.
+     * Provides the string value of the current token, without the enclosing quotes.
+     * Should only be called when current token is string_const.
      */
 
     public String stringVal() {
-        return currentToken.toString();
+        return text.substring(1, text.length() - 1);
+    }
+
+    /**
+     * Closes the input file.
+     */
+    public void close() throws IOException {
+        reader.close();
     }
 }
@@ -17,18 +17,18 @@ public enum Kind {
         }
     }
 
-    public static String kindToSegment(Kind kind){
+    public static Segment kindToSegment(Kind kind){
         switch (kind){
             case STATIC:
-                return "static";
+                return Segment.STATIC;
             case FIELD:
-                return "this";
+                return Segment.THIS;
             case ARG:
-                return "argument";
+                return Segment.ARGUMENT;
             case VAR:
-                return "local";
+                return Segment.LOCAL;
             default:
-                return "none";
+                return Segment.NONE;
 
         }
     }
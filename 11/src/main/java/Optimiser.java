@@ -0,0 +1,854 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimises the VM code of a class one function at a time, for the compiler's --optimise mode.
+ * <p>
+ * The commands the CompilationEngine writes for a function are lifted into three-address form:
+ * each push, arithmetic command and call computes a new value, and each pop stores one, so
+ * "push local 0, push constant 1, add, pop local 0" becomes t0 = local 0, t1 = 1, t2 = t0 + t1,
+ * local 0 = t2. Labels and jumps split the function into basic blocks. The instructions keep the
+ * order the commands were written in, and each value is used once, by a later instruction in the
+ * same block, so the instructions can be written back out as VM commands with the values left on
+ * the stack, where they were.
+ * <p>
+ * The passes work on the local, argument and temp segments, which only the function itself can
+ * change (apart from calls, which change temp):
+ * <ul>
+ * <li>constant and copy propagation replace reads of a variable known to hold a constant, or the
+ * same value as another variable, and fold the operations that become constant;</li>
+ * <li>blocks which can no longer be reached are removed: code after a return, and branches whose
+ * condition has become constant;</li>
+ * <li>dead store elimination removes stores which are never read, or which store the value the
+ * variable already holds, along with the code computing the value if it has no side effects.</li>
+ * </ul>
+ * Statics, fields, array elements and the pointer segment are read and written in their original
+ * order. A function which leaves values on the stack across a label or jump is written out as it is.
+ */
+public class Optimiser {
+
+    // Instruction kinds.
+    private static final int LOAD = 0;
+    private static final int STORE = 1;
+    private static final int ARITHMETIC = 2;
+    private static final int CALL = 3;
+    private static final int GOTO = 4;
+    private static final int IF = 5;
+    private static final int RETURN = 6;
+
+    // What propagation knows about a variable.
+    private static final byte CONSTANT = 0;
+    private static final byte COPY = 1;
+    private static final byte VARYING = 2;
+
+    // Rounds of propagation and dead store elimination, each of which can open up the next.
+    private static final int ROUNDS = 3;
+
+    /**
+     * One instruction. The values it uses are the instructions which computed them.
+     */
+    private static final class Instruction {
+        int kind;
+        final int line;
+        // LOAD: the segment read, or CONSTANT. STORE: the segment written.
+        Segment segment;
+        // LOAD: the index read, or the constant. STORE: the index written.
+        int index;
+        // The variable read or written by a LOAD or STORE, or -1 if it is not tracked.
+        int variable = -1;
+        ArithmeticCommand operator;
+        // CALL: the function. GOTO and IF: the label.
+        String name;
+        Instruction[] operands = new Instruction[0];
+        boolean removed;
+        // LOAD: what propagation knew about the value loaded, when it was loaded, and the position
+        // in the block at which it was loaded.
+        byte knownKind = VARYING;
+        int knownValue;
+        int loadedAt;
+
+        Instruction(int kind, int line) {
+            this.kind = kind;
+            this.line = line;
+        }
+
+        boolean isConstant() {
+            return kind == LOAD && segment == Segment.CONSTANT;
+        }
+
+        boolean isTerminator() {
+            return kind == GOTO || kind == IF || kind == RETURN;
+        }
+    }
+
+    private static final class Block {
+        final String label;
+        final List<Instruction> instructions = new ArrayList<>();
+        Block next;
+        Block target;
+        boolean reachable;
+
+        Block(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return the last instruction still in the block, or null if there is none.
+         */
+        Instruction last() {
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                if (!instructions.get(i).removed) {
+                    return instructions.get(i);
+                }
+            }
+            return null;
+        }
+
+        List<Block> successors() {
+            List<Block> successors = new ArrayList<>(2);
+            Instruction last = last();
+            int kind = last == null ? -1 : last.kind;
+            if (kind == GOTO || kind == IF) {
+                successors.add(target);
+            }
+            if (kind != GOTO && kind != RETURN && next != null) {
+                successors.add(next);
+            }
+            return successors;
+        }
+    }
+
+    /**
+     * What propagation knows about each variable at one point of the function.
+     */
+    private static final class State {
+        final byte[] kinds;
+        final int[] values;
+
+        State(int size) {
+            kinds = new byte[size];
+            values = new int[size];
+        }
+
+        State copy() {
+            State copy = new State(kinds.length);
+            System.arraycopy(kinds, 0, copy.kinds, 0, kinds.length);
+            System.arraycopy(values, 0, copy.values, 0, values.length);
+            return copy;
+        }
+
+        /**
+         * Merges in the state along another path.
+         *
+         * @return whether anything changed.
+         */
+        boolean meet(State other) {
+            boolean changed = false;
+            for (int i = 0; i < kinds.length; i++) {
+                if (kinds[i] != VARYING && (kinds[i] != other.kinds[i] || values[i] != other.values[i])) {
+                    kinds[i] = VARYING;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * Records a new value for a variable. Variables which were copies of it no longer are.
+         */
+        void assign(int variable, byte kind, int value) {
+            forget(variable);
+            kinds[variable] = kind;
+            values[variable] = value;
+        }
+
+        void forget(int variable) {
+            kinds[variable] = VARYING;
+            for (int i = 0; i < kinds.length; i++) {
+                if (kinds[i] == COPY && values[i] == variable) {
+                    kinds[i] = VARYING;
+                }
+            }
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<Integer, Integer> variables = new HashMap<>();
+    private final List<Segment> variableSegments = new ArrayList<>();
+    private final List<Integer> variableIndexes = new ArrayList<>();
+    private String functionName;
+    private int localCount;
+    private int functionLine;
+
+    private Optimiser() {
+    }
+
+    /**
+     * Optimises one function and writes it out.
+     *
+     * @param commands the function's commands, starting with its function command. The line number
+     *                 of each is the line of the source file it was compiled from.
+     * @param writer   the writer to write the optimised commands to.
+     * @param log      the log to report the optimisation to.
+     */
+    static void optimise(List<VMCommand> commands, VMWriter writer, Log log) throws IOException {
+        Optimiser optimiser = new Optimiser();
+        if (!optimiser.lift(commands)) {
+            if (log.isEnabled(Log.Level.DEBUG)) {
+                log.debug("Not optimising " + commands.get(0).getArg1() + ": values are left on the stack across a jump");
+            }
+            replay(commands, writer);
+            return;
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean changed = optimiser.propagate();
+            optimiser.removeUnreachable();
+            changed |= optimiser.eliminateDeadStores();
+            if (!changed) {
+                break;
+            }
+        }
+        int count = optimiser.write(writer);
+        if (log.isEnabled(Log.Level.DEBUG)) {
+            log.debug("Optimised " + optimiser.functionName + " from " + commands.size() + " to " + count + " commands");
+        }
+    }
+
+    /**
+     * Writes out commands as they are.
+     */
+    private static void replay(List<VMCommand> commands, VMWriter writer) throws IOException {
+        for (VMCommand command : commands) {
+            writer.setSourceLine(command.getLineNumber());
+            switch (command.getType()) {
+                case C_PUSH:
+                    writer.writePush(Segment.valueOf(command.getArg1().toUpperCase()), command.getArg2());
+                    break;
+                case C_POP:
+                    writer.writePop(Segment.valueOf(command.getArg1().toUpperCase()), command.getArg2());
+                    break;
+                case C_ARITHMETIC:
+                    writer.writeArithmetic(ArithmeticCommand.valueOf(command.getArg1().toUpperCase()));
+                    break;
+                case C_LABEL:
+                    writer.writeLabel(command.getArg1());
+                    break;
+                case C_GOTO:
+                    writer.writeGoto(command.getArg1());
+                    break;
+                case C_IF:
+                    writer.writeIf(command.getArg1());
+                    break;
+                case C_CALL:
+                    writer.writeCall(command.getArg1(), command.getArg2());
+                    break;
+                case C_FUNCTION:
+                    writer.writeFunction(command.getArg1(), command.getArg2());
+                    break;
+                case C_RETURN:
+                    writer.writeReturn();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the number of the variable at the given place, or -1 if the segment is not tracked.
+     */
+    private int variable(Segment segment, int index) {
+        if (segment != Segment.LOCAL && segment != Segment.ARGUMENT && segment != Segment.TEMP) {
+            return -1;
+        }
+        Integer key = segment.ordinal() << 16 | index;
+        Integer variable = variables.get(key);
+        if (variable == null) {
+            variable = variables.size();
+            variables.put(key, variable);
+            variableSegments.add(segment);
+            variableIndexes.add(index);
+        }
+        return variable;
+    }
+
+    private Block startBlock(String label) {
+        Block block = new Block(label);
+        if (!blocks.isEmpty()) {
+            blocks.get(blocks.size() - 1).next = block;
+        }
+        blocks.add(block);
+        return block;
+    }
+
+    /**
+     * Takes the values a command uses off the stack.
+     *
+     * @return the instructions which computed them, in the order they were pushed, or null if the
+     * stack does not hold that many.
+     */
+    private static Instruction[] pop(Deque<Instruction> stack, int count) {
+        if (stack.size() < count) {
+            return null;
+        }
+        Instruction[] operands = new Instruction[count];
+        for (int i = count - 1; i >= 0; i--) {
+            operands[i] = stack.pop();
+        }
+        return operands;
+    }
+
+    /**
+     * Lifts a function's commands into blocks of instructions.
+     *
+     * @return false if the function cannot be optimised.
+     */
+    private boolean lift(List<VMCommand> commands) {
+        Deque<Instruction> stack = new ArrayDeque<>();
+        Block block = startBlock(null);
+        for (VMCommand command : commands) {
+            int line = command.getLineNumber();
+            Instruction instruction;
+            switch (command.getType()) {
+                case C_FUNCTION:
+                    functionName = command.getArg1();
+                    localCount = command.getArg2();
+                    functionLine = line;
+                    continue;
+                case C_LABEL:
+                    if (!stack.isEmpty()) {
+                        return false;
+                    }
+                    block = startBlock(command.getArg1());
+                    continue;
+                case C_PUSH:
+                    instruction = new Instruction(LOAD, line);
+                    instruction.segment = Segment.valueOf(command.getArg1().toUpperCase());
+                    instruction.index = command.getArg2();
+                    instruction.variable = variable(instruction.segment, instruction.index);
+                    break;
+                case C_POP:
+                    instruction = new Instruction(STORE, line);
+                    instruction.segment = Segment.valueOf(command.getArg1().toUpperCase());
+                    instruction.index = command.getArg2();
+                    instruction.variable = variable(instruction.segment, instruction.index);
+                    instruction.operands = pop(stack, 1);
+                    break;
+                case C_ARITHMETIC:
+                    instruction = new Instruction(ARITHMETIC, line);
+                    instruction.operator = ArithmeticCommand.valueOf(command.getArg1().toUpperCase());
+                    boolean unary = instruction.operator == ArithmeticCommand.NEG || instruction.operator == ArithmeticCommand.NOT;
+                    instruction.operands = pop(stack, unary ? 1 : 2);
+                    break;
+                case C_CALL:
+                    instruction = new Instruction(CALL, line);
+                    instruction.name = command.getArg1();
+                    instruction.operands = pop(stack, command.getArg2());
+                    break;
+                case C_GOTO:
+                    instruction = new Instruction(GOTO, line);
+                    instruction.name = command.getArg1();
+                    break;
+                case C_IF:
+                    instruction = new Instruction(IF, line);
+                    instruction.name = command.getArg1();
+                    instruction.operands = pop(stack, 1);
+                    break;
+                default:
+                    instruction = new Instruction(RETURN, line);
+                    instruction.operands = pop(stack, 1);
+                    break;
+            }
+            if (instruction.operands == null) {
+                return false;
+            }
+            block.instructions.add(instruction);
+            if (instruction.kind == LOAD || instruction.kind == ARITHMETIC || instruction.kind == CALL) {
+                stack.push(instruction);
+            }
+            if (instruction.isTerminator()) {
+                if (!stack.isEmpty()) {
+                    return false;
+                }
+                block = startBlock(null);
+            }
+        }
+        if (!stack.isEmpty()) {
+            return false;
+        }
+        Map<String, Block> labels = new HashMap<>();
+        for (Block labelled : blocks) {
+            if (labelled.label != null && labels.put(labelled.label, labelled) != null) {
+                return false;
+            }
+        }
+        for (Block jumping : blocks) {
+            Instruction last = jumping.last();
+            if (last != null && (last.kind == GOTO || last.kind == IF)) {
+                jumping.target = labels.get(last.name);
+                if (jumping.target == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the state on entry to the function: locals start at 0, and nothing is known about the
+     * arguments or temp.
+     */
+    private State entryState() {
+        State state = new State(variables.size());
+        for (int i = 0; i < variables.size(); i++) {
+            boolean local = variableSegments.get(i) == Segment.LOCAL && variableIndexes.get(i) < localCount;
+            state.kinds[i] = local ? CONSTANT : VARYING;
+            state.values[i] = 0;
+        }
+        return state;
+    }
+
+    /**
+     * Runs constant and copy propagation to a fixed point, then rewrites the function with what it
+     * found.
+     *
+     * @return whether anything was rewritten.
+     */
+    private boolean propagate() {
+        Map<Block, State> states = new HashMap<>();
+        states.put(blocks.get(0), entryState());
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block block : blocks) {
+                State in = states.get(block);
+                if (in == null) {
+                    continue;
+                }
+                State out = in.copy();
+                transfer(block, out, false);
+                for (Block successor : block.successors()) {
+                    State successorIn = states.get(successor);
+                    if (successorIn == null) {
+                        states.put(successor, out.copy());
+                        changed = true;
+                    } else {
+                        changed |= successorIn.meet(out);
+                    }
+                }
+            }
+        }
+        boolean rewritten = false;
+        for (Block block : blocks) {
+            State in = states.get(block);
+            if (in != null) {
+                rewritten |= transfer(block, in.copy(), true);
+            }
+        }
+        return rewritten;
+    }
+
+    /**
+     * Runs a block's instructions over a state, and optionally rewrites them with what it knows.
+     *
+     * @param block   the block.
+     * @param state   the state on entry to the block, which becomes the state on exit.
+     * @param rewrite whether to rewrite the instructions.
+     * @return whether any instruction was rewritten.
+     */
+    private boolean transfer(Block block, State state, boolean rewrite) {
+        boolean rewritten = false;
+        // The position in the block at which each variable was last written, or -1. Values do not
+        // stay on the stack from one block to the next, so this is all a store needs to tell whether
+        // the variable its value was loaded from has changed since.
+        int[] writtenAt = new int[variables.size()];
+        Arrays.fill(writtenAt, -1);
+        int position = 0;
+        for (Instruction instruction : block.instructions) {
+            if (instruction.removed) {
+                continue;
+            }
+            position++;
+            switch (instruction.kind) {
+                case LOAD:
+                    int read = instruction.variable;
+                    if (rewrite && read >= 0 && state.kinds[read] == CONSTANT) {
+                        instruction.segment = Segment.CONSTANT;
+                        instruction.index = state.values[read];
+                        instruction.variable = -1;
+                        rewritten = true;
+                    } else if (rewrite && read >= 0 && state.kinds[read] == COPY) {
+                        int source = state.values[read];
+                        instruction.segment = variableSegments.get(source);
+                        instruction.index = variableIndexes.get(source);
+                        instruction.variable = source;
+                        rewritten = true;
+                    }
+                    if (instruction.variable >= 0) {
+                        int loaded = instruction.variable;
+                        if (state.kinds[loaded] == VARYING) {
+                            instruction.knownKind = COPY;
+                            instruction.knownValue = loaded;
+                        } else {
+                            instruction.knownKind = state.kinds[loaded];
+                            instruction.knownValue = state.values[loaded];
+                        }
+                        instruction.loadedAt = position;
+                    }
+                    break;
+                case STORE:
+                    rewritten |= store(instruction, state, rewrite, writtenAt);
+                    if (instruction.variable >= 0) {
+                        writtenAt[instruction.variable] = position;
+                    }
+                    break;
+                case ARITHMETIC:
+                    if (rewrite) {
+                        rewritten |= fold(instruction);
+                    }
+                    break;
+                case CALL:
+                    // The called function may use temp.
+                    for (int i = 0; i < variables.size(); i++) {
+                        if (variableSegments.get(i) == Segment.TEMP) {
+                            state.forget(i);
+                            writtenAt[i] = position;
+                        }
+                    }
+                    break;
+                case IF:
+                    Instruction condition = instruction.operands[0];
+                    if (rewrite && condition.isConstant()) {
+                        // The branch is always or never taken.
+                        if (condition.index != 0) {
+                            instruction.kind = GOTO;
+                            instruction.operands = new Instruction[0];
+                        } else {
+                            instruction.removed = true;
+                        }
+                        condition.removed = true;
+                        rewritten = true;
+                    }
+                    break;
+            }
+        }
+        return rewritten;
+    }
+
+    /**
+     * Runs a store over a state. When rewriting, a store of the value the variable already holds
+     * is removed. A value loaded from a variable is what was known about the variable when it was
+     * loaded, not when it is stored: the variable may have been written in between, as when a tail
+     * call swaps two arguments.
+     *
+     * @param writtenAt the position in the block at which each variable was last written, or -1.
+     * @return whether the store was removed.
+     */
+    private boolean store(Instruction store, State state, boolean rewrite, int[] writtenAt) {
+        int written = store.variable;
+        if (written < 0) {
+            return false;
+        }
+        Instruction value = store.operands[0];
+        byte kind = VARYING;
+        int known = 0;
+        if (value.isConstant()) {
+            kind = CONSTANT;
+            known = (short) value.index;
+        } else if (value.kind == LOAD && value.variable >= 0
+                && !(value.knownKind == COPY && writtenAt[value.knownValue] > value.loadedAt)) {
+            kind = value.knownKind;
+            known = value.knownValue;
+        }
+        if ((kind != VARYING && state.kinds[written] == kind && state.values[written] == known)
+                || (kind == COPY && known == written)) {
+            if (rewrite) {
+                remove(store);
+                return true;
+            }
+            return false;
+        }
+        state.assign(written, kind, known);
+        return false;
+    }
+
+    /**
+     * Replaces an arithmetic command on constants with its result.
+     *
+     * @return whether the command was folded.
+     */
+    private static boolean fold(Instruction instruction) {
+        for (Instruction operand : instruction.operands) {
+            if (!operand.isConstant()) {
+                return false;
+            }
+        }
+        int a = (short) instruction.operands[0].index;
+        Integer result;
+        if (instruction.operator == ArithmeticCommand.NEG) {
+            result = -a;
+        } else if (instruction.operator == ArithmeticCommand.NOT) {
+            result = ~a;
+        } else {
+            result = Expr.fold(operatorSymbol(instruction.operator), a, (short) instruction.operands[1].index);
+        }
+        if (result == null) {
+            return false;
+        }
+        for (Instruction operand : instruction.operands) {
+            operand.removed = true;
+        }
+        // The instruction keeps its place, now pushing the result.
+        instruction.kind = LOAD;
+        instruction.operator = null;
+        instruction.operands = new Instruction[0];
+        instruction.segment = Segment.CONSTANT;
+        instruction.index = (short) (int) result;
+        return true;
+    }
+
+    private static char operatorSymbol(ArithmeticCommand operator) {
+        switch (operator) {
+            case ADD:
+                return '+';
+            case SUB:
+                return '-';
+            case AND:
+                return '&';
+            case OR:
+                return '|';
+            case LT:
+                return '<';
+            case GT:
+                return '>';
+            default:
+                return '=';
+        }
+    }
+
+    /**
+     * Removes an instruction and the instructions which computed its values.
+     */
+    private static void remove(Instruction instruction) {
+        instruction.removed = true;
+        for (Instruction operand : instruction.operands) {
+            remove(operand);
+        }
+    }
+
+    /**
+     * @return whether the instruction and the instructions which computed its values have no
+     * effect besides the value.
+     */
+    private static boolean isPure(Instruction instruction) {
+        if (instruction.kind == CALL) {
+            return false;
+        }
+        for (Instruction operand : instruction.operands) {
+            if (!isPure(operand)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the blocks which can be reached from the start of the function.
+     */
+    private void removeUnreachable() {
+        for (Block block : blocks) {
+            block.reachable = false;
+        }
+        Deque<Block> work = new ArrayDeque<>();
+        blocks.get(0).reachable = true;
+        work.push(blocks.get(0));
+        while (!work.isEmpty()) {
+            for (Block successor : work.pop().successors()) {
+                if (!successor.reachable) {
+                    successor.reachable = true;
+                    work.push(successor);
+                }
+            }
+        }
+        for (Block block : blocks) {
+            if (!block.reachable) {
+                for (Instruction instruction : block.instructions) {
+                    instruction.removed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes stores to variables which are not read again before they are next written, or before
+     * the function returns.
+     *
+     * @return whether any store was removed.
+     */
+    private boolean eliminateDeadStores() {
+        boolean removedAny = false;
+        boolean removed = true;
+        while (removed) {
+            Map<Block, BitSet> liveIn = liveness();
+            removed = false;
+            for (Block block : blocks) {
+                if (!block.reachable) {
+                    continue;
+                }
+                BitSet live = liveOut(block, liveIn);
+                for (int i = block.instructions.size() - 1; i >= 0; i--) {
+                    Instruction instruction = block.instructions.get(i);
+                    if (instruction.removed) {
+                        continue;
+                    }
+                    if (instruction.kind == STORE && instruction.variable >= 0 && !live.get(instruction.variable)
+                            && isPure(instruction.operands[0])) {
+                        remove(instruction);
+                        removed = true;
+                        continue;
+                    }
+                    step(instruction, live);
+                }
+            }
+            removedAny |= removed;
+        }
+        return removedAny;
+    }
+
+    /**
+     * Runs liveness analysis to a fixed point.
+     *
+     * @return the variables live on entry to each block.
+     */
+    private Map<Block, BitSet> liveness() {
+        Map<Block, BitSet> liveIn = new HashMap<>();
+        for (Block block : blocks) {
+            liveIn.put(block, new BitSet());
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blocks.size() - 1; b >= 0; b--) {
+                Block block = blocks.get(b);
+                if (!block.reachable) {
+                    continue;
+                }
+                BitSet live = liveOut(block, liveIn);
+                for (int i = block.instructions.size() - 1; i >= 0; i--) {
+                    if (!block.instructions.get(i).removed) {
+                        step(block.instructions.get(i), live);
+                    }
+                }
+                if (!live.equals(liveIn.get(block))) {
+                    liveIn.put(block, live);
+                    changed = true;
+                }
+            }
+        }
+        return liveIn;
+    }
+
+    private static BitSet liveOut(Block block, Map<Block, BitSet> liveIn) {
+        BitSet live = new BitSet();
+        for (Block successor : block.successors()) {
+            live.or(liveIn.get(successor));
+        }
+        return live;
+    }
+
+    /**
+     * Steps liveness backwards over one instruction.
+     */
+    private void step(Instruction instruction, BitSet live) {
+        if (instruction.kind == STORE && instruction.variable >= 0) {
+            live.clear(instruction.variable);
+        } else if (instruction.kind == LOAD && instruction.variable >= 0) {
+            live.set(instruction.variable);
+        } else if (instruction.kind == CALL) {
+            // The called function may overwrite temp, and never reads what the caller left there.
+            for (int i = 0; i < variables.size(); i++) {
+                if (variableSegments.get(i) == Segment.TEMP) {
+                    live.clear(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the function out as VM commands. Labels which are no longer jumped to, and jumps to
+     * the block which follows anyway, are left out.
+     *
+     * @return the number of commands written.
+     */
+    private int write(VMWriter writer) throws IOException {
+        List<Block> reachable = new ArrayList<>();
+        for (Block block : blocks) {
+            if (block.reachable) {
+                reachable.add(block);
+            }
+        }
+        Set<String> targets = new HashSet<>();
+        for (int b = 0; b < reachable.size(); b++) {
+            Instruction last = reachable.get(b).last();
+            if (last == null || (last.kind != GOTO && last.kind != IF)) {
+                continue;
+            }
+            if (last.kind == GOTO && b + 1 < reachable.size() && reachable.get(b + 1) == reachable.get(b).target) {
+                last.removed = true;
+            } else {
+                targets.add(last.name);
+            }
+        }
+        writer.setSourceLine(functionLine);
+        writer.writeFunction(functionName, localCount);
+        int count = 1;
+        for (Block block : reachable) {
+            if (block.label != null && targets.contains(block.label)) {
+                writer.writeLabel(block.label);
+                count++;
+            }
+            for (Instruction instruction : block.instructions) {
+                if (instruction.removed) {
+                    continue;
+                }
+                writer.setSourceLine(instruction.line);
+                switch (instruction.kind) {
+                    case LOAD:
+                        if (instruction.segment == Segment.CONSTANT) {
+                            count += writer.writeConstant(instruction.index);
+                            continue;
+                        }
+                        writer.writePush(instruction.segment, instruction.index);
+                        break;
+                    case STORE:
+                        writer.writePop(instruction.segment, instruction.index);
+                        break;
+                    case ARITHMETIC:
+                        writer.writeArithmetic(instruction.operator);
+                        break;
+                    case CALL:
+                        writer.writeCall(instruction.name, instruction.operands.length);
+                        break;
+                    case GOTO:
+                        writer.writeGoto(instruction.name);
+                        break;
+                    case IF:
+                        writer.writeIf(instruction.name);
+                        break;
+                    default:
+                        writer.writeReturn();
+                        break;
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,26 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The VM memory segments, with their names pre-encoded for the VMWriter.
+ * The order is the segment's code in the binary VM format.
+ */
+public enum Segment {
+    CONSTANT("constant"), ARGUMENT("argument"), LOCAL("local"), STATIC("static"),
+    THIS("this"), THAT("that"), POINTER("pointer"), TEMP("temp"), NONE("none");
+
+    private final String text;
+    private final byte[] bytes;
+
+    Segment(String text) {
+        this.text = text;
+        this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+}
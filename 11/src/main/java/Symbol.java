@@ -3,12 +3,14 @@ public class Symbol {
     private String type;
     private Kind kind;
     private int index;
+    private Segment segment;
 
 
     public Symbol(String type, Kind kind, int index){
         this.type = type;
         this.kind = kind;
         this.index = index;
+        this.segment = Kind.kindToSegment(kind);
     }
 
     public String getType() {
@@ -22,4 +24,11 @@ public class Symbol {
         return index;
     }
 
+    /**
+     * @return the VM segment the identifier is stored in.
+     */
+    public Segment getSegment() {
+        return segment;
+    }
+
 }
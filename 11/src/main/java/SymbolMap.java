@@ -0,0 +1,147 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Maps ranges of generated ROM addresses back to the VM command, function and .vm line
+ * they were translated from.
+ * <p>
+ * Each entry marks the ROM address at which the code for one VM command starts; the command's
+ * code runs up to the start of the next entry. The map is written as a text file with one
+ * tab separated entry per line: address, function, file, line and command type.
+ */
+public class SymbolMap {
+
+    /**
+     * The function name given to code which is not inside any VM function, such as the bootstrap.
+     */
+    public static final String NO_FUNCTION = "(none)";
+
+    private int[] addresses;
+    private String[] functions;
+    private String[] files;
+    private int[] lines;
+    private Command[] types;
+    private int size;
+
+    public SymbolMap() {
+        this.addresses = new int[256];
+        this.functions = new String[256];
+        this.files = new String[256];
+        this.lines = new int[256];
+        this.types = new Command[256];
+        this.size = 0;
+    }
+
+    /**
+     * Records that the code for a VM command starts at the given ROM address.
+     * Entries must be added in increasing address order.
+     *
+     * @param address  the ROM address of the first instruction of the command.
+     * @param function the VM function containing the command.
+     * @param file     the .vm file containing the command.
+     * @param line     the line of the command in its file.
+     * @param type     the type of the command.
+     */
+    public void add(int address, String function, String file, int line, Command type) {
+        if (size == addresses.length) {
+            addresses = Arrays.copyOf(addresses, size * 2);
+            functions = Arrays.copyOf(functions, size * 2);
+            files = Arrays.copyOf(files, size * 2);
+            lines = Arrays.copyOf(lines, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+        }
+        addresses[size] = address;
+        functions[size] = function;
+        files[size] = file;
+        lines[size] = line;
+        types[size] = type;
+        size++;
+    }
+
+    /**
+     * @return the number of entries in the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the entry whose code contains the given ROM address.
+     *
+     * @param address a ROM address.
+     * @return the index of the entry, or -1 if the address is before the first entry.
+     */
+    public int find(int address) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (addresses[mid] <= address) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    public int getAddress(int entry) {
+        return addresses[entry];
+    }
+
+    public String getFunction(int entry) {
+        return functions[entry];
+    }
+
+    public String getFile(int entry) {
+        return files[entry];
+    }
+
+    public int getLine(int entry) {
+        return lines[entry];
+    }
+
+    public Command getType(int entry) {
+        return types[entry];
+    }
+
+    /**
+     * Writes the map to a text file.
+     *
+     * @param path the path of the map file.
+     */
+    public void write(String path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(path)))) {
+            for (int i = 0; i < size; i++) {
+                writer.println(addresses[i] + "\t" + functions[i] + "\t" + files[i] + "\t" + lines[i] + "\t" + types[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a map previously written by write().
+     *
+     * @param path the path of the map file.
+     * @return the map.
+     * @throws IOException if the file cannot be read or is not a valid map.
+     */
+    public static SymbolMap read(String path) throws IOException {
+        SymbolMap map = new SymbolMap();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    throw new IOException("Invalid entry on line " + lineNumber + " of " + path);
+                }
+                map.add(Integer.parseInt(fields[0]), fields[1], fields[2], Integer.parseInt(fields[3]),
+                        Command.valueOf(fields[4]));
+            }
+        }
+        return map;
+    }
+}
@@ -1,5 +1,3 @@
-import java.util.HashMap;
-
 public class SymbolTable {
 
     /**
@@ -13,16 +11,16 @@ public class SymbolTable {
      */
 
 
-    private HashMap<String, Symbol> classScope;
-    private HashMap<String, Symbol> subroutineScope;
+    private Scope classScope;
+    private Scope subroutineScope;
     private int numArg = 0;
     private int numVar = 0;
     private int numStatic = 0;
     private int numField = 0;
 
     public SymbolTable() {
-        this.classScope = new HashMap<>();
-        this.subroutineScope = new HashMap<>();
+        this.classScope = new Scope();
+        this.subroutineScope = new Scope();
     }
 
     /**
@@ -88,6 +86,18 @@ public class SymbolTable {
     }
 
 
+    /**
+     * Looks up an identifier in the current scope, the subroutine's names first.
+     *
+     * @param name The name of the identifier.
+     * @return the identifier's symbol, or null if it is not defined.
+     */
+
+    public Symbol lookup(String name) {
+        Symbol symbol = subroutineScope.get(name);
+        return symbol != null ? symbol : classScope.get(name);
+    }
+
     /**
      * Returns the kind of the named identifier in the current scope.
      * Returns NONE if the identifier is unknown in the current scope.
@@ -97,13 +107,8 @@ public class SymbolTable {
      */
 
     public Kind kindOf(String name) {
-        if (subroutineScope.containsKey(name)) {
-            return subroutineScope.get(name).getKind();
-        } else if (classScope.containsKey(name)) {
-            return classScope.get(name).getKind();
-        } else {
-            return Kind.NONE;
-        }
+        Symbol symbol = lookup(name);
+        return symbol != null ? symbol.getKind() : Kind.NONE;
     }
 
     /**
@@ -114,13 +119,8 @@ public class SymbolTable {
      */
 
     public String typeOf(String name) {
-        if (subroutineScope.containsKey(name)) {
-            return subroutineScope.get(name).getType();
-        } else if (classScope.containsKey(name)) {
-            return classScope.get(name).getType();
-        } else {
-            return "none";
-        }
+        Symbol symbol = lookup(name);
+        return symbol != null ? symbol.getType() : "none";
     }
 
     /**
@@ -131,12 +131,78 @@ public class SymbolTable {
      */
 
     public int indexOf(String name){
-        if (subroutineScope.containsKey(name)) {
-            return subroutineScope.get(name).getIndex();
-        } else if (classScope.containsKey(name)) {
-            return classScope.get(name).getIndex();
-        } else {
-            return 0;
+        Symbol symbol = lookup(name);
+        return symbol != null ? symbol.getIndex() : 0;
+    }
+
+    /**
+     * The names of one scope, in an open addressing hash table with linear probing.
+     * <p>
+     * Each slot records the generation it was filled in, and a slot from an earlier generation
+     * counts as empty. Clearing the scope for the next subroutine just starts a new generation,
+     * rather than emptying every slot.
+     */
+    private static final class Scope {
+
+        // Must be a power of two. Grows as needed, but few subroutines declare more names.
+        private static final int INITIAL_CAPACITY = 32;
+
+        private String[] names = new String[INITIAL_CAPACITY];
+        private Symbol[] symbols = new Symbol[INITIAL_CAPACITY];
+        private int[] generations = new int[INITIAL_CAPACITY];
+        // Starts at 1, as the slots all start at generation 0.
+        private int generation = 1;
+        private int size = 0;
+
+        Symbol get(String name) {
+            int mask = names.length - 1;
+            for (int slot = name.hashCode() & mask; generations[slot] == generation; slot = (slot + 1) & mask) {
+                if (names[slot].equals(name)) {
+                    return symbols[slot];
+                }
+            }
+            return null;
+        }
+
+        void put(String name, Symbol symbol) {
+            if ((size + 1) * 2 > names.length) {
+                grow();
+            }
+            int mask = names.length - 1;
+            int slot = name.hashCode() & mask;
+            while (generations[slot] == generation) {
+                if (names[slot].equals(name)) {
+                    symbols[slot] = symbol;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            names[slot] = name;
+            symbols[slot] = symbol;
+            generations[slot] = generation;
+            size++;
+        }
+
+        void clear() {
+            generation++;
+            size = 0;
+        }
+
+        private void grow() {
+            String[] oldNames = names;
+            Symbol[] oldSymbols = symbols;
+            int[] oldGenerations = generations;
+            int oldGeneration = generation;
+            names = new String[oldNames.length * 2];
+            symbols = new Symbol[oldNames.length * 2];
+            generations = new int[oldNames.length * 2];
+            generation = 1;
+            size = 0;
+            for (int i = 0; i < oldNames.length; i++) {
+                if (oldGenerations[i] == oldGeneration) {
+                    put(oldNames[i], oldSymbols[i]);
+                }
+            }
         }
     }
 }
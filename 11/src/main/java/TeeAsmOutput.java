@@ -0,0 +1,65 @@
+import java.io.IOException;
+
+/**
+ * Writes the CodeWriter's instructions to two outputs at once, typically the in-memory Hack
+ * backend and an .asm file kept for debugging. Addresses and lines are those of the first output.
+ */
+public class TeeAsmOutput implements AsmOutput {
+
+    private final AsmOutput first;
+    private final AsmOutput second;
+
+    public TeeAsmOutput(AsmOutput first, AsmOutput second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public void comment(String text) {
+        first.comment(text);
+        second.comment(text);
+    }
+
+    @Override
+    public void label(String symbol) {
+        first.label(symbol);
+        second.label(symbol);
+    }
+
+    @Override
+    public void aInstruction(String symbol) {
+        first.aInstruction(symbol);
+        second.aInstruction(symbol);
+    }
+
+    @Override
+    public void aInstruction(int value) {
+        first.aInstruction(value);
+        second.aInstruction(value);
+    }
+
+    @Override
+    public void cInstruction(String instruction) {
+        first.cInstruction(instruction);
+        second.cInstruction(instruction);
+    }
+
+    @Override
+    public int romAddress() {
+        return first.romAddress();
+    }
+
+    @Override
+    public int outputLine() {
+        return first.outputLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            first.close();
+        } finally {
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A window over the tokens of a source file, read from a JackTokeniser as they are needed.
+ * <p>
+ * Tokens are stored as parallel arrays rather than objects: each token's kind, its text, its int
+ * value (keyword id, symbol character or integer constant) and its line and column. Tokens are
+ * numbered from 0 for the whole file, but only the last CAPACITY tokens read are kept, so memory
+ * use does not depend on the size of the file. Tokens ahead of the current one can be looked at
+ * without side effects, so the parser can look ahead as far as it needs within the window. To look
+ * further ahead, the parser pins its current token: the window then grows rather than dropping it,
+ * until it is unpinned.
+ */
+public class TokenBuffer implements Closeable {
+
+    // Token kinds, in the same order as the Token enum.
+    static final byte KEYWORD = 0;
+    static final byte SYMBOL = 1;
+    static final byte IDENTIFIER = 2;
+    static final byte INT_CONST = 3;
+    static final byte STRING_CONST = 4;
+    static final byte NONE = 5;
+
+    private static final Token[] TOKEN_TYPES = Token.values();
+
+    // The number of tokens kept, unless a pinned token needs more. Must be a power of two.
+    private static final int CAPACITY = 16;
+
+    private final JackTokeniser tokeniser;
+    private byte[] types;
+    private String[] texts;
+    private int[] values;
+    private int[] lines;
+    private int[] columns;
+    private int mask;
+    private int count;
+    private boolean exhausted;
+    // The error the tokeniser stopped at, or null, and the index the token it failed on would have had.
+    private Exception failure;
+    private int failedAt;
+    // The first token which must stay in the window.
+    private int pinned;
+
+    /**
+     * @param tokeniser the tokeniser to read tokens from.
+     */
+    public TokenBuffer(JackTokeniser tokeniser) {
+        this.tokeniser = tokeniser;
+        this.types = new byte[CAPACITY];
+        this.texts = new String[CAPACITY];
+        this.values = new int[CAPACITY];
+        this.lines = new int[CAPACITY];
+        this.columns = new int[CAPACITY];
+        this.mask = CAPACITY - 1;
+        this.count = 0;
+        this.exhausted = false;
+        this.pinned = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Keeps the given token, and every token after it, in the window until unpin is called.
+     *
+     * @param index the index of a token which is in the window.
+     */
+    public void pin(int index) {
+        this.pinned = index;
+    }
+
+    /**
+     * Lets the window drop old tokens again. Its size stays as it is.
+     */
+    public void unpin() {
+        this.pinned = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Doubles the size of the window, moving each token to its slot in the new one.
+     */
+    private void grow() {
+        int capacity = (mask + 1) * 2;
+        byte[] newTypes = new byte[capacity];
+        String[] newTexts = new String[capacity];
+        int[] newValues = new int[capacity];
+        int[] newLines = new int[capacity];
+        int[] newColumns = new int[capacity];
+        for (int i = Math.max(0, count - mask - 1); i < count; i++) {
+            int from = i & mask;
+            int to = i & (capacity - 1);
+            newTypes[to] = types[from];
+            newTexts[to] = texts[from];
+            newValues[to] = values[from];
+            newLines[to] = lines[from];
+            newColumns[to] = columns[from];
+        }
+        types = newTypes;
+        texts = newTexts;
+        values = newValues;
+        lines = newLines;
+        columns = newColumns;
+        mask = capacity - 1;
+    }
+
+    /**
+     * Reads tokens from the tokeniser until the given token is in the window. If the tokeniser
+     * fails, the buffer ends at the last token it read: the error is thrown once, and the tokens
+     * after that are taken to be past the end of the file.
+     *
+     * @param index the index of a token.
+     * @return false if the file has fewer tokens.
+     * @throws Exception if the input does not contain a valid token.
+     */
+    private boolean load(int index) throws Exception {
+        if (index < count - mask - 1) {
+            throw new IllegalStateException("Token " + index + " is no longer buffered");
+        }
+        while (index >= count && !exhausted) {
+            try {
+                if (!tokeniser.hasMoreTokens()) {
+                    exhausted = true;
+                    break;
+                }
+                if (count - mask - 1 >= pinned) {
+                    grow();
+                }
+                tokeniser.advance();
+            } catch (Exception e) {
+                exhausted = true;
+                failure = e;
+                failedAt = count;
+                throw e;
+            }
+            int slot = count & mask;
+            types[slot] = tokeniser.getKind();
+            texts[slot] = tokeniser.getCurrentToken();
+            values[slot] = tokeniser.getValue();
+            lines[slot] = tokeniser.getLineNumber();
+            columns[slot] = tokeniser.getColumnNumber();
+            count++;
+        }
+        return index < count;
+    }
+
+    /**
+     * @return the error the tokeniser stopped at, whose message already gives the file, line and
+     * column, or null if it has not failed.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * @param index the index of a token.
+     * @return whether the token could not be read because the tokeniser failed at or before it.
+     */
+    public boolean isPastFailure(int index) {
+        return failure != null && index >= failedAt;
+    }
+
+    /**
+     * @param index the index of a token. Indexes past the end are allowed and return NONE.
+     * @return the kind of the token.
+     */
+    public byte type(int index) throws Exception {
+        return load(index) ? types[index & mask] : NONE;
+    }
+
+    /**
+     * @param index the index of a token.
+     * @return the type of the token as a Token, for messages.
+     */
+    public Token tokenType(int index) throws Exception {
+        return load(index) ? TOKEN_TYPES[types[index & mask]] : Token.WHITESPACE;
+    }
+
+    /**
+     * @param index the index of a token. Indexes past the end are allowed and return "".
+     * @return the text of the token, as written in the source.
+     */
+    public String text(int index) throws Exception {
+        return load(index) ? texts[index & mask] : "";
+    }
+
+    /**
+     * @param index the index of a keyword, symbol or integer constant.
+     * @return the keyword id, symbol character or integer value of the token.
+     */
+    public int intValue(int index) throws Exception {
+        load(index);
+        return values[index & mask];
+    }
+
+    /**
+     * @param index the index of a string constant.
+     * @return the string, without its enclosing quotes.
+     */
+    public String stringValue(int index) throws Exception {
+        String text = text(index);
+        return text.substring(1, text.length() - 1);
+    }
+
+    /**
+     * @param index the index of a token. Past the end, this is the line of the last token.
+     * @return the line the token is on, starting from 1.
+     */
+    public int line(int index) throws Exception {
+        if (load(index)) {
+            return lines[index & mask];
+        }
+        return count > 0 ? lines[(count - 1) & mask] : 1;
+    }
+
+    /**
+     * @param index the index of a token. Past the end, this is the column of the last token.
+     * @return the column the token starts at, starting from 1.
+     */
+    public int column(int index) throws Exception {
+        if (load(index)) {
+            return columns[index & mask];
+        }
+        return count > 0 ? columns[(count - 1) & mask] : 1;
+    }
+
+    /**
+     * Closes the tokeniser's input file.
+     */
+    public void close() throws IOException {
+        tokeniser.close();
+    }
+}
@@ -1,18 +1,356 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 public class VMWriter {
 
     /**
      * Writes VM commands into a file. Encapsulates the VM command syntax.
+     * <p>
+     * Commands are encoded straight into a reusable byte buffer, from pre-encoded command and
+     * segment names, and the buffer is written to the file's channel whenever it fills up.
+     * <p>
+     * Commands are written either as text, one per line, or in the compact binary VM format read
+     * by the VM translator from .vmb files:
+     * <pre>
+     * int     magic "N2TV"
+     * byte    version
+     * then for each command, an opcode byte followed by its operands:
+     *   0-8   add sub neg eq gt lt and or not
+     *   9     push      segment byte, index short
+     *   10    pop       segment byte, index short
+     *   11    label     name
+     *   12    goto      name
+     *   13    if-goto   name
+     *   14    function  name, number of locals short
+     *   15    call      name, number of arguments short
+     *   16    return
+     * </pre>
+     * Names are written as a short length followed by that many ASCII bytes. Segments are coded by
+     * their order in Segment.
+     * <p>
+     * A VMWriter can also hand each command, as a VMCommand, straight to the CodeWriter of the VM
+     * translator, with or without writing a file, or write nothing and only record the calls each
+     * function makes into a CallGraph.
      */
 
-    private PrintWriter writer;
-    private File outFile;
+    public static final String BINARY_EXTENSION = ".vmb";
+    public static final int BINARY_MAGIC = 0x4E325456;
+    public static final int BINARY_VERSION = 1;
+
+    static final byte OP_PUSH = 9;
+    static final byte OP_POP = 10;
+    static final byte OP_LABEL = 11;
+    static final byte OP_GOTO = 12;
+    static final byte OP_IF_GOTO = 13;
+    static final byte OP_FUNCTION = 14;
+    static final byte OP_CALL = 15;
+    static final byte OP_RETURN = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] PUSH = ascii("push ");
+    private static final byte[] POP = ascii("pop ");
+    private static final byte[] LABEL = ascii("label ");
+    private static final byte[] GOTO = ascii("goto ");
+    private static final byte[] IF_GOTO = ascii("if-goto ");
+    private static final byte[] FUNCTION = ascii("function ");
+    private static final byte[] CALL = ascii("call ");
+    private static final byte[] RETURN = ascii("return");
+
+    private final FileChannel channel;
+    private final Path outPath;
+    private final ByteBuffer buffer;
+    private final boolean binary;
+    private final CodeWriter translator;
+    private final String vmFileName;
+    private final byte[] digits;
+    private LineMap lineMap;
+    private String sourceFile;
+    private int sourceLine;
+    private int lineCount;
+    private Log log;
+    private boolean optimise;
+    // The commands of the function being written, while optimising.
+    private List<VMCommand> function;
+    // The graph to record functions and calls into instead of writing, or null.
+    private final CallGraph callGraph;
+    private String currentFunction;
+    // The functions to write, or null to write them all, and whether the commands of the current
+    // function are being dropped.
+    private Set<String> reachable;
+    private boolean dropping;
+    // Whether the output has been thrown away, because the class has errors.
+    private boolean discarded;
 
 
     public VMWriter(String outPath) throws IOException {
-        this.outFile = new File(outPath);
-        this.writer = new PrintWriter(new BufferedWriter(new FileWriter(outFile)));
+        this(outPath, false);
+    }
+
+    /**
+     * @param outPath the path to the output file.
+     * @param binary  whether to write the binary VM format instead of text.
+     */
+    public VMWriter(String outPath, boolean binary) throws IOException {
+        this(outPath, binary, null, null);
+    }
+
+    /**
+     * Creates a writer which hands each command to the VM translator.
+     *
+     * @param translator the CodeWriter to translate the commands.
+     * @param vmFileName the name of the .vm file the commands would have been written to.
+     * @param outPath    the path to also write the commands to as text, or null to write no file.
+     */
+    public VMWriter(CodeWriter translator, String vmFileName, String outPath) throws IOException {
+        this(outPath, false, translator, vmFileName);
+    }
+
+    /**
+     * Creates a writer which writes nothing, but records each function and the calls it makes.
+     *
+     * @param callGraph the graph to record into.
+     */
+    public VMWriter(CallGraph callGraph) throws IOException {
+        this(null, false, null, null, callGraph);
+    }
+
+    private VMWriter(String outPath, boolean binary, CodeWriter translator, String vmFileName) throws IOException {
+        this(outPath, binary, translator, vmFileName, null);
+    }
+
+    private VMWriter(String outPath, boolean binary, CodeWriter translator, String vmFileName, CallGraph callGraph)
+            throws IOException {
+        this.callGraph = callGraph;
+        this.outPath = outPath == null ? null : Paths.get(outPath);
+        this.channel = outPath == null ? null : FileChannel.open(Paths.get(outPath), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocate(outPath == null ? 0 : BUFFER_SIZE);
+        this.binary = binary;
+        this.translator = translator;
+        this.vmFileName = vmFileName;
+        this.digits = new byte[11];
+        this.log = new Log(Log.Level.INFO, System.out);
+        if (binary) {
+            buffer.putInt(BINARY_MAGIC);
+            buffer.put((byte) BINARY_VERSION);
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Sets the log. Each function is reported at DEBUG level and each command at TRACE level.
+     *
+     * @param log the log to print messages to.
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * Starts recording which line of the source file each VM command was compiled from.
+     *
+     * @param lineMap    the map to record into.
+     * @param sourceFile the name of the .jack file being compiled.
+     */
+    public void setLineMap(LineMap lineMap, String sourceFile) {
+        this.lineMap = lineMap;
+        this.sourceFile = sourceFile;
+    }
+
+    /**
+     * Optimises each function before writing it: its commands are held until the next function
+     * starts, or the writer is closed, and then handed to the Optimiser.
+     */
+    public void setOptimise() {
+        this.optimise = true;
+    }
+
+    /**
+     * Only writes the given functions. The commands of any other function are dropped, before
+     * they are optimised or counted in the line map.
+     *
+     * @param reachable the full names of the functions to write.
+     */
+    public void setReachable(Set<String> reachable) {
+        this.reachable = reachable;
+    }
+
+    /**
+     * Holds on to a command of the function being optimised rather than writing it. The command's
+     * line number is the line of the source file it was compiled from. Commands are also held back
+     * here, and never written, when they are being recorded in the call graph or dropped.
+     *
+     * @return whether the command was held.
+     */
+    private boolean hold(Command type, String arg1, int arg2) {
+        if (discarded) {
+            return true;
+        }
+        if (callGraph != null) {
+            if (type == Command.C_FUNCTION) {
+                currentFunction = arg1;
+                callGraph.addFunction(arg1);
+            } else if (type == Command.C_CALL) {
+                callGraph.addCall(currentFunction, arg1);
+            }
+            return true;
+        }
+        if (dropping) {
+            return true;
+        }
+        if (function == null) {
+            return false;
+        }
+        function.add(new VMCommand(type, arg1, arg2, null, sourceLine));
+        return true;
+    }
+
+    /**
+     * Optimises and writes out the function being held, if there is one.
+     */
+    private void endFunction() throws IOException {
+        if (function != null) {
+            List<VMCommand> commands = function;
+            function = null;
+            // The Optimiser writes the function back through this writer.
+            optimise = false;
+            try {
+                Optimiser.optimise(commands, this, log);
+            } finally {
+                optimise = true;
+            }
+        }
+    }
+
+    /**
+     * Sets the line of the source file that the following commands are compiled from.
+     *
+     * @param sourceLine the line of the .jack file, starting from 1.
+     */
+    public void setSourceLine(int sourceLine) {
+        this.sourceLine = sourceLine;
+    }
+
+    /**
+     * Starts a command: hands it to the translator, if there is one, and makes sure the buffer
+     * has room for it.
+     *
+     * @param size an upper bound on the number of bytes the command takes.
+     * @param type the type of the command.
+     * @param arg1 the first argument, or the command itself for C_ARITHMETIC.
+     * @param arg2 the second argument for C_PUSH, C_POP, C_FUNCTION and C_CALL.
+     * @return false if no file is being written, so the command should not be encoded.
+     */
+    private boolean begin(int size, Command type, String arg1, int arg2) throws IOException {
+        lineCount++;
+        if (lineMap != null) {
+            lineMap.add(lineCount, sourceFile, sourceLine);
+        }
+        if (translator != null) {
+            translator.write(new VMCommand(type, arg1, arg2, vmFileName, lineCount));
+        }
+        if (channel == null) {
+            return false;
+        }
+        if (buffer.remaining() < size) {
+            flush();
+        }
+        if (buffer.remaining() < size) {
+            throw new IOException("VM command too long: " + size + " bytes");
+        }
+        return true;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putNumber(int value) {
+        if (binary) {
+            buffer.putShort((short) value);
+            return;
+        }
+        long number = value;
+        if (number < 0) {
+            buffer.put((byte) '-');
+            number = -number;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + number % 10);
+            number /= 10;
+        } while (number > 0);
+        while (count > 0) {
+            buffer.put(digits[--count]);
+        }
+    }
+
+    private void putName(String name) {
+        if (binary) {
+            buffer.putShort((short) name.length());
+        }
+        for (int i = 0; i < name.length(); i++) {
+            buffer.put((byte) name.charAt(i));
+        }
+    }
+
+    private void end() {
+        if (!binary) {
+            buffer.put((byte) '\n');
+        }
+    }
+
+    private void endCount(int count) {
+        if (!binary) {
+            buffer.put((byte) ' ');
+        }
+        putNumber(count);
+        end();
+    }
+
+    private void writeSegmentCommand(byte opcode, byte[] text, Command type, Segment segment, int index) throws IOException {
+        if (!begin(32, type, segment.getText(), index)) {
+            return;
+        }
+        if (binary) {
+            buffer.put(opcode);
+            buffer.put((byte) segment.ordinal());
+        } else {
+            buffer.put(text);
+            buffer.put(segment.getBytes());
+            buffer.put((byte) ' ');
+        }
+        putNumber(index);
+        end();
+    }
+
+    private boolean writeNameCommand(byte opcode, byte[] text, Command type, String name, int count) throws IOException {
+        if (!begin(name.length() + 16, type, name, count)) {
+            return false;
+        }
+        if (binary) {
+            buffer.put(opcode);
+        } else {
+            buffer.put(text);
+        }
+        putName(name);
+        return true;
     }
 
     /**
@@ -21,9 +359,14 @@ public class VMWriter {
      * @param segment The segment to push to
      * @param index   The index within the segment.
      */
-    public void writePush(String segment, int index) {
-        System.out.println("Writing " + "push " + segment + " " + index);
-        writer.println("push " + segment + " " + index);
+    public void writePush(Segment segment, int index) throws IOException {
+        if (hold(Command.C_PUSH, segment.getText(), index)) {
+            return;
+        }
+        if (log.isEnabled(Log.Level.TRACE)) {
+            log.trace("Writing push " + segment.getText() + " " + index);
+        }
+        writeSegmentCommand(OP_PUSH, PUSH, Command.C_PUSH, segment, index);
     }
 
     /**
@@ -32,8 +375,11 @@ public class VMWriter {
      * @param segment The segment to pop to
      * @param index   The index within the segment.
      */
-    public void writePop(String segment, int index) {
-        writer.println("pop " + segment + " " + index);
+    public void writePop(Segment segment, int index) throws IOException {
+        if (hold(Command.C_POP, segment.getText(), index)) {
+            return;
+        }
+        writeSegmentCommand(OP_POP, POP, Command.C_POP, segment, index);
     }
 
     /**
@@ -41,9 +387,47 @@ public class VMWriter {
      *
      * @param command The command to write.
      */
-    public void writeArithmetic(String command) {
-        System.out.println("writing " + command);
-        writer.println(command);
+    public void writeArithmetic(ArithmeticCommand command) throws IOException {
+        if (hold(Command.C_ARITHMETIC, command.getText(), 0)) {
+            return;
+        }
+        if (log.isEnabled(Log.Level.TRACE)) {
+            log.trace("Writing " + command.getText());
+        }
+        if (!begin(8, Command.C_ARITHMETIC, command.getText(), 0)) {
+            return;
+        }
+        if (binary) {
+            buffer.put((byte) command.ordinal());
+        } else {
+            buffer.put(command.getBytes());
+        }
+        end();
+    }
+
+    /**
+     * Writes the commands which push a constant. The VM can only push 0 to 32767, so negative
+     * constants are pushed as their magnitude and negated; -1 (true) is ~0, and -32768 is ~32767.
+     *
+     * @param value the constant, from -32768 to 32767.
+     * @return the number of commands written.
+     */
+    public int writeConstant(int value) throws IOException {
+        if (value >= 0) {
+            writePush(Segment.CONSTANT, value);
+            return 1;
+        }
+        if (value == -1) {
+            writePush(Segment.CONSTANT, 0);
+            writeArithmetic(ArithmeticCommand.NOT);
+        } else if (value == Short.MIN_VALUE) {
+            writePush(Segment.CONSTANT, Short.MAX_VALUE);
+            writeArithmetic(ArithmeticCommand.NOT);
+        } else {
+            writePush(Segment.CONSTANT, -value);
+            writeArithmetic(ArithmeticCommand.NEG);
+        }
+        return 2;
     }
 
     /**
@@ -51,8 +435,13 @@ public class VMWriter {
      *
      * @param label The label to write
      */
-    public void writeLabel(String label) {
-        writer.println("label " + label);
+    public void writeLabel(String label) throws IOException {
+        if (hold(Command.C_LABEL, label, 0)) {
+            return;
+        }
+        if (writeNameCommand(OP_LABEL, LABEL, Command.C_LABEL, label, 0)) {
+            end();
+        }
     }
 
     /**
@@ -61,8 +450,13 @@ public class VMWriter {
      * @param label The label to go to.
      */
 
-    public void writeGoto(String label) {
-        writer.println("goto " + label);
+    public void writeGoto(String label) throws IOException {
+        if (hold(Command.C_GOTO, label, 0)) {
+            return;
+        }
+        if (writeNameCommand(OP_GOTO, GOTO, Command.C_GOTO, label, 0)) {
+            end();
+        }
     }
 
     /**
@@ -71,8 +465,13 @@ public class VMWriter {
      * @param label The label to go to.
      */
 
-    public void writeIf(String label) {
-        writer.println("if-goto " + label);
+    public void writeIf(String label) throws IOException {
+        if (hold(Command.C_IF, label, 0)) {
+            return;
+        }
+        if (writeNameCommand(OP_IF_GOTO, IF_GOTO, Command.C_IF, label, 0)) {
+            end();
+        }
     }
 
     /**
@@ -81,8 +480,13 @@ public class VMWriter {
      * @param name  The name of the subroutine to call.
      * @param nArgs The number of args in the subroutine.
      */
-    public void writeCall(String name, int nArgs) {
-        writer.println("call " + name + " " + nArgs);
+    public void writeCall(String name, int nArgs) throws IOException {
+        if (hold(Command.C_CALL, name, nArgs)) {
+            return;
+        }
+        if (writeNameCommand(OP_CALL, CALL, Command.C_CALL, name, nArgs)) {
+            endCount(nArgs);
+        }
     }
 
     /**
@@ -91,24 +495,68 @@ public class VMWriter {
      * @param name    The name of the function
      * @param nLocals The number of local variables
      */
-    public void writeFunction(String name, int nLocals) {
-        System.out.println("Writing function: " + name + "with " + nLocals + " locals...");
-        writer.println("function " + name + " " + nLocals);
+    public void writeFunction(String name, int nLocals) throws IOException {
+        if (optimise) {
+            endFunction();
+        }
+        dropping = reachable != null && !reachable.contains(name);
+        if (optimise && !dropping) {
+            function = new ArrayList<>();
+        }
+        if (hold(Command.C_FUNCTION, name, nLocals)) {
+            return;
+        }
+        if (log.isEnabled(Log.Level.DEBUG)) {
+            log.debug("Writing function: " + name + " with " + nLocals + " locals...");
+        }
+        if (writeNameCommand(OP_FUNCTION, FUNCTION, Command.C_FUNCTION, name, nLocals)) {
+            endCount(nLocals);
+        }
     }
 
     /**
      * Writes a VM return command
      */
-    public void writeReturn() {
-        writer.println("return");
+    public void writeReturn() throws IOException {
+        if (hold(Command.C_RETURN, null, 0)) {
+            return;
+        }
+        if (!begin(8, Command.C_RETURN, null, 0)) {
+            return;
+        }
+        if (binary) {
+            buffer.put(OP_RETURN);
+        } else {
+            buffer.put(RETURN);
+        }
+        end();
+    }
+
+    /**
+     * Stops writing: the output file is closed and deleted, and every command from here on is
+     * dropped. Used once a class is found to have errors, so that no partial output is left behind.
+     */
+    public void discard() throws IOException {
+        discarded = true;
+        function = null;
+        if (channel != null) {
+            channel.close();
+            Files.deleteIfExists(outPath);
+        }
     }
 
     /**
-     * Closes the output file & writer
+     * Writes out what is left in the buffer and closes the output file.
      */
-    public void close() {
-        writer.flush();
-        writer.close();
+    public void close() throws IOException {
+        if (discarded) {
+            return;
+        }
+        endFunction();
+        if (channel != null) {
+            flush();
+            channel.close();
+        }
     }
 
 }